@@ -0,0 +1,301 @@
+package redis.clients.johm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * BinaryEncoding implements {@link Encoding#BINARY}.
+ *
+ * Within JOhm, the hash values of a binary Model are carried as ISO-8859-1
+ * strings holding one char per byte, so that the loader, the writer and the
+ * near cache handle them like any other value. They are turned into raw bytes
+ * only at the Redis boundary, where binary Models are read and written with
+ * byte[] commands. Values that have no binary form, and reference ids, are
+ * stored as their UTF-8 bytes.
+ */
+final class BinaryEncoding {
+    private static final String BYTES = "ISO-8859-1";
+    private static final String TEXT = "UTF-8";
+
+    private BinaryEncoding() {
+    }
+
+    /**
+     * Check whether values of the given type have a binary form.
+     */
+    static boolean supports(final Class<?> type) {
+        return isIntegral(type) || type.equals(Double.class) || type.equals(double.class)
+                || type.equals(Float.class) || type.equals(float.class)
+                || type.equals(Boolean.class) || type.equals(boolean.class)
+                || type.equals(Date.class) || type.isEnum();
+    }
+
+    /**
+     * The codec of an attribute of a binary Model, built around the codec
+     * the attribute would have in a string Model.
+     */
+    static FieldCodec codec(final Field field, final FieldCodec textCodec) {
+        final Class<?> type = field.getType();
+        if (!supports(type)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    textCodec.decode(model, value == null ? null : fromStored(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    String value = textCodec.encode(model);
+                    return value == null ? null : toStored(value);
+                }
+            };
+        }
+        return new FieldCodec() {
+            public void decode(Object model, String value) throws IllegalAccessException {
+                if (value != null) {
+                    field.set(model, toObject(type, value));
+                } else if (!type.isPrimitive()) {
+                    field.set(model, null);
+                }
+            }
+
+            public String encode(Object model) throws IllegalAccessException {
+                Object value = field.get(model);
+                return value == null ? null : toStored(type, value);
+            }
+        };
+    }
+
+    /**
+     * Decode the stored binary form of a value of the given type.
+     */
+    static Object toObject(final Class<?> type, final String stored) {
+        byte[] bytes = bytes(stored);
+        if (type.equals(Boolean.class) || type.equals(boolean.class)) {
+            return bytes[0] != 0;
+        }
+        if (type.equals(Double.class) || type.equals(double.class)) {
+            return Double.longBitsToDouble(readFixed(bytes, 8));
+        }
+        if (type.equals(Float.class) || type.equals(float.class)) {
+            return Float.intBitsToFloat((int) readFixed(bytes, 4));
+        }
+        long number = readVarLong(bytes);
+        if (type.equals(Integer.class) || type.equals(int.class)) {
+            return (int) number;
+        }
+        if (type.equals(Long.class) || type.equals(long.class)) {
+            return number;
+        }
+        if (type.equals(Short.class) || type.equals(short.class)) {
+            return (short) number;
+        }
+        if (type.equals(Byte.class) || type.equals(byte.class)) {
+            return (byte) number;
+        }
+        if (type.equals(Date.class)) {
+            return new Date(number);
+        }
+        return EnumTable.of(type).constant((int) number);
+    }
+
+    /**
+     * Encode a value of the given type into its stored binary form.
+     */
+    static String toStored(final Class<?> type, final Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8);
+        if (type.equals(Boolean.class) || type.equals(boolean.class)) {
+            out.write(((Boolean) value).booleanValue() ? 1 : 0);
+        } else if (type.equals(Double.class) || type.equals(double.class)) {
+            writeFixed(out, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+        } else if (type.equals(Float.class) || type.equals(float.class)) {
+            writeFixed(out, Float.floatToIntBits(((Number) value).floatValue()), 4);
+        } else if (type.equals(Date.class)) {
+            writeVarLong(out, ((Date) value).getTime());
+        } else if (type.isEnum()) {
+            writeVarLong(out, EnumTable.of(type).code((Enum<?>) value));
+        } else {
+            writeVarLong(out, ((Number) value).longValue());
+        }
+        return string(out.toByteArray());
+    }
+
+    /**
+     * The stored form of a text value: its UTF-8 bytes.
+     */
+    static String toStored(final String text) {
+        try {
+            return new String(text.getBytes(TEXT), BYTES);
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+    }
+
+    /**
+     * The text value of a stored form made of UTF-8 bytes.
+     */
+    static String fromStored(final String stored) {
+        try {
+            return new String(bytes(stored), TEXT);
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+    }
+
+    /**
+     * The raw bytes of a stored form, to be sent to Redis.
+     */
+    static byte[] bytes(final String stored) {
+        try {
+            return stored.getBytes(BYTES);
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+    }
+
+    /**
+     * The stored form of raw bytes read from Redis.
+     */
+    static String string(final byte[] bytes) {
+        try {
+            return new String(bytes, BYTES);
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+    }
+
+    private static boolean isIntegral(final Class<?> type) {
+        return type.equals(Integer.class) || type.equals(int.class)
+                || type.equals(Long.class) || type.equals(long.class)
+                || type.equals(Short.class) || type.equals(short.class)
+                || type.equals(Byte.class) || type.equals(byte.class);
+    }
+
+    // zig-zag encoded, so that small negative numbers stay short
+    private static void writeVarLong(final ByteArrayOutputStream out, final long number) {
+        long value = (number << 1) ^ (number >> 63);
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(final byte[] bytes) {
+        long value = 0;
+        int shift = 0;
+        for (byte b : bytes) {
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeFixed(final ByteArrayOutputStream out, final long value,
+            final int width) {
+        for (int shift = (width - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+
+    private static long readFixed(final byte[] bytes, final int width) {
+        long value = 0;
+        for (int iter = 0; iter < width; iter++) {
+            value = (value << 8) | (bytes[iter] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * The stable mapping between the constants of an enum and their codes,
+     * kept in the johm:enums:<enum class> hash. Codes are handed out in the
+     * order constants are first stored, so they survive constants being
+     * added, removed or reordered.
+     */
+    private static final class EnumTable {
+        private static final ConcurrentMap<Class<?>, EnumTable> tables = new ConcurrentHashMap<Class<?>, EnumTable>();
+
+        private final Class<?> type;
+        private final String key;
+        private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+        private final ConcurrentMap<Integer, Enum<?>> constants = new ConcurrentHashMap<Integer, Enum<?>>();
+
+        static EnumTable of(final Class<?> type) {
+            EnumTable table = tables.get(type);
+            if (table == null) {
+                table = new EnumTable(type);
+                EnumTable existing = tables.putIfAbsent(type, table);
+                if (existing != null) {
+                    table = existing;
+                }
+            }
+            return table;
+        }
+
+        private EnumTable(final Class<?> type) {
+            this.type = type;
+            this.key = "johm:enums:" + type.getName();
+        }
+
+        int code(final Enum<?> constant) {
+            Integer code = codes.get(constant.name());
+            if (code == null) {
+                List<byte[]> args = new ArrayList<byte[]>(1);
+                args.add(SafeEncoder.encode(constant.name()));
+                code = Integer.valueOf(SafeEncoder.encode((byte[]) nest().evalsha(
+                        LuaScript.ENUM_CODE, args)));
+                Enum<?> previous = constants.put(code, constant);
+                if (previous != null && previous != constant) {
+                    // the table was dropped from Redis, forget its old codes
+                    codes.clear();
+                    constants.clear();
+                    constants.put(code, constant);
+                }
+                codes.put(constant.name(), code);
+            }
+            return code;
+        }
+
+        Enum<?> constant(final int code) {
+            Enum<?> constant = constants.get(code);
+            if (constant == null) {
+                reload();
+                constant = constants.get(code);
+                if (constant == null) {
+                    throw new JOhmException("No constant of " + type.getName()
+                            + " is stored with code " + code,
+                            JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+                }
+            }
+            return constant;
+        }
+
+        private void reload() {
+            for (Map.Entry<String, String> entry : nest().hgetAll().entrySet()) {
+                for (Object constant : type.getEnumConstants()) {
+                    if (((Enum<?>) constant).name().equals(entry.getKey())) {
+                        Integer code = Integer.valueOf(entry.getValue());
+                        codes.put(entry.getKey(), code);
+                        constants.put(code, (Enum<?>) constant);
+                    }
+                }
+            }
+        }
+
+        private Nest<?> nest() {
+            Nest<?> nest = new Nest<Object>(key);
+            nest.setJedisPool(JOhm.getPool());
+            return nest;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package redis.clients.johm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * BlobLayout implements {@link Layout#BLOB}: it packs the hash of a model,
+ * keyed by storage key, into a single value and back, so that the rest of
+ * JOhm keeps handling the model as a hash.
+ *
+ * The value starts with a format version byte, followed by one entry per
+ * non-null field: the length and UTF-8 bytes of the storage key, then the
+ * length and bytes of the value. Lengths are unsigned varints. Values are
+ * UTF-8 text, or for a binary Model the raw bytes of its
+ * {@link BinaryEncoding} form.
+ */
+final class BlobLayout {
+    private static final int VERSION = 1;
+
+    private BlobLayout() {
+    }
+
+    static byte[] pack(final Map<String, String> hash, final boolean binary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * (hash.size() + 1));
+        out.write(VERSION);
+        for (Map.Entry<String, String> field : hash.entrySet()) {
+            if (field.getValue() != null) {
+                writeBytes(out, SafeEncoder.encode(field.getKey()));
+                writeBytes(out, binary ? BinaryEncoding.bytes(field.getValue())
+                        : SafeEncoder.encode(field.getValue()));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static Map<String, String> unpack(final byte[] blob, final boolean binary) {
+        if (blob.length == 0 || blob[0] != VERSION) {
+            throw new JOhmException("Unknown model blob format",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        Map<String, String> hash = new HashMap<String, String>();
+        int[] position = { 1 };
+        while (position[0] < blob.length) {
+            String name = SafeEncoder.encode(readBytes(blob, position));
+            byte[] value = readBytes(blob, position);
+            hash.put(name, binary ? BinaryEncoding.string(value) : SafeEncoder.encode(value));
+        }
+        return hash;
+    }
+
+    private static void writeBytes(final ByteArrayOutputStream out, final byte[] bytes) {
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] readBytes(final byte[] blob, final int[] position) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = blob[position[0]++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        byte[] bytes = new byte[length];
+        System.arraycopy(blob, position[0], bytes, 0, length);
+        position[0] += length;
+        return bytes;
+    }
+}
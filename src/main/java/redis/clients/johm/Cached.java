@@ -0,0 +1,31 @@
+package redis.clients.johm;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Models annotated with @Cached keep the stored state of recently loaded
+ * instances in a bounded in-process near cache, so that loading them again
+ * does not read Redis. Entries are dropped after ttl seconds, and as soon as
+ * the model is saved, updated, incremented, expired or deleted by any JVM
+ * using JOhm on the same Redis, which publishes an invalidation message.
+ *
+ * Best suited to small Models that are read much more often than written.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Cached {
+    /**
+     * Maximum number of models kept, the least recently used being dropped
+     * first.
+     */
+    int maxSize() default 1000;
+
+    /**
+     * Seconds after which a cached model is read from Redis again, which
+     * bounds staleness should an invalidation message be lost.
+     */
+    int ttl() default 60;
+}
@@ -0,0 +1,13 @@
+package redis.clients.johm;
+
+import java.lang.reflect.Field;
+
+/**
+ * A Converter able to resolve, ahead of time, a {@link FieldCodec}
+ * specialized for the type of a field. JOhm resolves the codec of every
+ * Attribute once, when the Model metadata is built. With a plain Converter,
+ * every value goes through getAsObject and getAsString instead.
+ */
+public interface CodecConverter extends Converter {
+    FieldCodec getCodec(Field field);
+}
@@ -0,0 +1,159 @@
+package redis.clients.johm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression transparently deflates long String attributes, once enabled
+ * with JOhm.setCompressionThreshold.
+ *
+ * A compressed value is stored as a NUL marker and a 'D', followed by the
+ * deflated UTF-8 bytes packed 7 bits to a char, so that it stays a plain
+ * string that costs 8 bits per 7 once sent as UTF-8. Any value that does not
+ * start with NUL is read as is, which keeps values stored before compression
+ * was enabled readable. Any other value that does start with NUL is stored
+ * escaped behind a NUL and an 'R', even while compression is disabled, as
+ * values compressed before are still read.
+ */
+final class Compression {
+    private static final char MARKER = '\u0000';
+    private static final char DEFLATED = 'D';
+    private static final char RAW = 'R';
+
+    private static volatile int threshold;
+
+    private Compression() {
+    }
+
+    /**
+     * @param threshold
+     *            the length from which values are compressed, or 0 to
+     *            compress nothing.
+     */
+    static void setThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new JOhmException("Compression threshold can not be negative",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        Compression.threshold = threshold;
+    }
+
+    static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * The stored form of a String attribute value.
+     */
+    static String compress(final String value) {
+        if (value == null) {
+            return null;
+        }
+        int limit = threshold;
+        if (limit > 0 && value.length() >= limit) {
+            String deflated = MARKER + "" + DEFLATED + pack(deflate(value));
+            if (deflated.length() < value.length()) {
+                return deflated;
+            }
+        }
+        if (value.length() > 0 && value.charAt(0) == MARKER) {
+            return MARKER + "" + RAW + value;
+        }
+        return value;
+    }
+
+    /**
+     * The String attribute value of a stored form, compressed or not.
+     */
+    static String decompress(final String stored) {
+        if (stored == null || stored.length() < 2 || stored.charAt(0) != MARKER) {
+            return stored;
+        }
+        if (stored.charAt(1) == RAW) {
+            return stored.substring(2);
+        }
+        if (stored.charAt(1) == DEFLATED) {
+            return inflate(unpack(stored, 2));
+        }
+        return stored;
+    }
+
+    private static byte[] deflate(final String value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value.getBytes("UTF-8"));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 4);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(final byte[] deflated) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new JOhmException("Truncated compressed value",
+                            JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toString("UTF-8");
+        } catch (DataFormatException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (UnsupportedEncodingException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String pack(final byte[] bytes) {
+        StringBuilder packed = new StringBuilder(bytes.length * 8 / 7 + 1);
+        int bits = 0;
+        int pending = 0;
+        for (byte b : bytes) {
+            bits = (bits << 8) | (b & 0xFF);
+            pending += 8;
+            while (pending >= 7) {
+                pending -= 7;
+                packed.append((char) ((bits >>> pending) & 0x7F));
+            }
+        }
+        if (pending > 0) {
+            packed.append((char) ((bits << (7 - pending)) & 0x7F));
+        }
+        return packed.toString();
+    }
+
+    private static byte[] unpack(final String packed, final int from) {
+        byte[] bytes = new byte[(packed.length() - from) * 7 / 8];
+        int bits = 0;
+        int pending = 0;
+        int length = 0;
+        for (int iter = from; iter < packed.length() && length < bytes.length; iter++) {
+            bits = (bits << 7) | (packed.charAt(iter) & 0x7F);
+            pending += 7;
+            if (pending >= 8) {
+                pending -= 8;
+                bytes[length++] = (byte) (bits >>> pending);
+            }
+        }
+        return bytes;
+    }
+}
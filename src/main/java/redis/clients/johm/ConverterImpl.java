@@ -5,10 +5,12 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-public class ConverterImpl implements Converter {
+public class ConverterImpl implements CodecConverter {
 
     private final Set<Class<?>> JOHM_SUPPORTED_PRIMITIVES = new HashSet<Class<?>>();
 
@@ -37,10 +39,16 @@ public class ConverterImpl implements Converter {
     }
 
     public Object getAsObject(Field field, String value) {
+        if (field.getType().equals(String.class)) {
+            return Compression.decompress(value);
+        }
         return getAsObject(field.getType(), value);
     }
 
     public String getAsString(Field field, Object value) {
+        if (field.getType().equals(String.class)) {
+            return Compression.compress((String) value);
+        }
         return getAsString(field.getType(), value);
     }
 
@@ -54,43 +62,34 @@ public class ConverterImpl implements Converter {
     @SuppressWarnings({ "unchecked", "rawtypes" })
 	public Object getAsObject(Class<?> type, String value) {
         if (type.equals(Byte.class) || type.equals(byte.class)) {
-            return new Byte(value);
+            return Byte.valueOf(value);
         }
         if (type.equals(Character.class) || type.equals(char.class)) {
-            if (!JOhmUtils.isNullOrEmpty(value)) {
-                if (value.length() > 1) {
-                    throw new IllegalArgumentException(
-                            "Non-character value masquerading as characters in a string");
-                }
-                return value.charAt(0);
-            } else {
-                // This is the default value
-                return '\u0000';
-            }
+            return parseChar(value);
         }
         if (type.equals(Short.class) || type.equals(short.class)) {
-            return new Short(value);
+            return Short.valueOf(value);
         }
         if (type.equals(Integer.class) || type.equals(int.class)) {
             if (value == null) {
                 return 0;
             }
-            return new Integer(value);
+            return Integer.valueOf(value);
         }
         if (type.equals(Float.class) || type.equals(float.class)) {
             if (value == null) {
                 return 0f;
             }
-            return new Float(value);
+            return Float.valueOf(value);
         }
         if (type.equals(Double.class) || type.equals(double.class)) {
-            return new Double(value);
+            return Double.valueOf(value);
         }
         if (type.equals(Long.class) || type.equals(long.class)) {
-            return new Long(value);
+            return Long.valueOf(value);
         }
         if (type.equals(Boolean.class) || type.equals(boolean.class)) {
-            return new Boolean(value);
+            return Boolean.valueOf(value);
         }
 
         // Higher precision folks
@@ -131,4 +130,274 @@ public class ConverterImpl implements Converter {
         }
         return value.toString();
     }
+
+    public FieldCodec getCodec(final Field field) {
+        Class<?> type = field.getType();
+        if (type.equals(int.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setInt(model, value == null ? 0 : Integer.parseInt(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Integer.toString(field.getInt(model));
+                }
+            };
+        }
+        if (type.equals(long.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setLong(model, value == null ? 0L : Long.parseLong(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Long.toString(field.getLong(model));
+                }
+            };
+        }
+        if (type.equals(double.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setDouble(model, value == null ? 0d : Double.parseDouble(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Double.toString(field.getDouble(model));
+                }
+            };
+        }
+        if (type.equals(float.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setFloat(model, value == null ? 0f : Float.parseFloat(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Float.toString(field.getFloat(model));
+                }
+            };
+        }
+        if (type.equals(boolean.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setBoolean(model, Boolean.parseBoolean(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return field.getBoolean(model) ? "true" : "false";
+                }
+            };
+        }
+        if (type.equals(short.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setShort(model, value == null ? 0 : Short.parseShort(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Short.toString(field.getShort(model));
+                }
+            };
+        }
+        if (type.equals(byte.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setByte(model, value == null ? 0 : Byte.parseByte(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Byte.toString(field.getByte(model));
+                }
+            };
+        }
+        if (type.equals(char.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.setChar(model, parseChar(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return String.valueOf(field.getChar(model));
+                }
+            };
+        }
+        if (type.equals(String.class)) {
+            return new FieldCodec() {
+                public void decode(Object model, String value) throws IllegalAccessException {
+                    field.set(model, Compression.decompress(value));
+                }
+
+                public String encode(Object model) throws IllegalAccessException {
+                    return Compression.compress((String) field.get(model));
+                }
+            };
+        }
+        FieldCodec objectCodec = getObjectCodec(field);
+        if (objectCodec != null) {
+            return objectCodec;
+        }
+        return new FieldCodec() {
+            public void decode(Object model, String value) throws IllegalAccessException {
+                field.set(model, getAsObject(field, value));
+            }
+
+            public String encode(Object model) throws IllegalAccessException {
+                Object value = field.get(model);
+                return value == null ? null : getAsString(field, value);
+            }
+        };
+    }
+
+    private static char parseChar(final String value) {
+        if (!JOhmUtils.isNullOrEmpty(value)) {
+            if (value.length() > 1) {
+                throw new IllegalArgumentException(
+                        "Non-character value masquerading as characters in a string");
+            }
+            return value.charAt(0);
+        }
+        // This is the default value
+        return '\u0000';
+    }
+
+    /**
+     * The codec of a field of a wrapper, Date, BigDecimal, BigInteger or enum
+     * type, which parses values straight into that type.
+     * 
+     * @return null for any other type.
+     */
+    private FieldCodec getObjectCodec(final Field field) {
+        final Class<?> type = field.getType();
+        if (type.equals(Integer.class)) {
+            return new ObjectCodec(field, 0) {
+                Object parse(String value) {
+                    return Integer.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Long.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return Long.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Double.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return Double.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Float.class)) {
+            return new ObjectCodec(field, 0f) {
+                Object parse(String value) {
+                    return Float.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Boolean.class)) {
+            return new ObjectCodec(field, false) {
+                Object parse(String value) {
+                    return Boolean.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Short.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return Short.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Byte.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return Byte.valueOf(value);
+                }
+            };
+        }
+        if (type.equals(Character.class)) {
+            return new ObjectCodec(field, '\u0000') {
+                Object parse(String value) {
+                    return parseChar(value);
+                }
+            };
+        }
+        if (type.equals(BigDecimal.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return new BigDecimal(value);
+                }
+            };
+        }
+        if (type.equals(BigInteger.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return new BigInteger(value);
+                }
+            };
+        }
+        if (type.equals(Date.class)) {
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    return new Date(Long.parseLong(value));
+                }
+
+                String format(Object value) {
+                    return Long.toString(((Date) value).getTime());
+                }
+            };
+        }
+        if (type.isEnum()) {
+            final Map<String, Object> constants = new HashMap<String, Object>();
+            for (Object constant : type.getEnumConstants()) {
+                constants.put(((Enum<?>) constant).name(), constant);
+            }
+            return new ObjectCodec(field, null) {
+                Object parse(String value) {
+                    Object constant = constants.get(value);
+                    if (constant == null) {
+                        throw new IllegalArgumentException("No enum constant "
+                                + type.getName() + "." + value);
+                    }
+                    return constant;
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * The codec of a field holding an object, encoded with its toString
+     * unless format is overridden.
+     */
+    private static abstract class ObjectCodec implements FieldCodec {
+        private final Field field;
+        private final Object absent;
+
+        /**
+         * @param absent
+         *            the value a missing value decodes to.
+         */
+        ObjectCodec(final Field field, final Object absent) {
+            this.field = field;
+            this.absent = absent;
+        }
+
+        abstract Object parse(String value);
+
+        String format(final Object value) {
+            return value.toString();
+        }
+
+        public void decode(Object model, String value) throws IllegalAccessException {
+            field.set(model, value == null ? absent : parse(value));
+        }
+
+        public String encode(Object model) throws IllegalAccessException {
+            Object value = field.get(model);
+            return value == null ? null : format(value);
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package redis.clients.johm;
+
+/**
+ * How the attributes of a Model are encoded in its Redis hash.
+ */
+public enum Encoding {
+    /**
+     * Every attribute is stored as the UTF-8 text of its value.
+     */
+    STRING,
+
+    /**
+     * Numeric, boolean, Date and enum attributes are stored in a compact
+     * binary form: variable-length integers, fixed-width floating point
+     * numbers, a single byte for booleans, and for enums a small code from a
+     * mapping table kept in Redis, which stays valid when constants are added
+     * or reordered. Other attributes are stored as UTF-8 text. Binary
+     * attributes can not be incremented with JOhm.increment.
+     */
+    BINARY
+}
@@ -0,0 +1,22 @@
+package redis.clients.johm;
+
+/**
+ * A FieldCodec converts one Attribute field between its Java value and its
+ * Redis string form, reading and writing the field itself so that primitive
+ * fields are accessed with Field.getInt, Field.setInt and the like, without
+ * boxing. Codecs are resolved once per field, see {@link CodecConverter}.
+ */
+public interface FieldCodec {
+    /**
+     * Decode the given stored value and write it on the field of the model.
+     * A null value sets the field to its default value.
+     */
+    void decode(Object model, String value) throws IllegalAccessException;
+
+    /**
+     * Read the field of the model and encode it.
+     * 
+     * @return null if the field is null.
+     */
+    String encode(Object model) throws IllegalAccessException;
+}
@@ -0,0 +1,292 @@
+package redis.clients.johm;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+
+import redis.clients.johm.JOhmUtils.JOhmCollectionDataType;
+
+/**
+ * FieldMetadata describes a single JOhm-annotated field of a Model. It is
+ * resolved once by {@link ModelMetadata} so that reading and writing the
+ * field, and finding its Redis storage key, does not require any further
+ * annotation lookups. Attributes also get their {@link FieldCodec} here.
+ */
+public final class FieldMetadata {
+    private final Field field;
+    private final String name;
+    private final String storageKey;
+    private final Class<?> type;
+    private final boolean attribute;
+    private final boolean reference;
+    private final boolean lazy;
+    private final boolean indexed;
+    private final boolean sorted;
+    private final Array array;
+    private final Annotation collection;
+    private final boolean lob;
+    private final boolean binary;
+    private final FieldCodec codec;
+    private volatile JOhmCollectionDataType arrayElementType;
+
+    FieldMetadata(final Field field, final boolean binary) {
+        field.setAccessible(true);
+        this.field = field;
+        this.name = field.getName();
+        this.attribute = field.isAnnotationPresent(Attribute.class);
+        this.reference = field.isAnnotationPresent(Reference.class);
+        this.lazy = reference && field.getType().equals(LazyReference.class);
+        this.type = lazy ? JOhmUtils.getLazyReferenceType(field) : field.getType();
+        this.indexed = field.isAnnotationPresent(Indexed.class);
+        this.sorted = indexed && field.getAnnotation(Indexed.class).sorted();
+        this.array = field.getAnnotation(Array.class);
+        this.collection = findCollectionAnnotation(field);
+        this.lob = field.isAnnotationPresent(Lob.class);
+        this.storageKey = reference ? JOhmUtils.getReferenceKeyName(field) : name;
+        this.binary = binary;
+        this.codec = attribute ? binary ? BinaryEncoding.codec(field, codecOf(field))
+                : codecOf(field) : null;
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The name under which this field is stored in the model hash and in its
+     * index keys. This is the field name for attributes and collections, and
+     * the field name suffixed with "_id" for references.
+     */
+    public String getStorageKey() {
+        return storageKey;
+    }
+
+    /**
+     * The declared type of this field, or for a lazy Reference the type of
+     * the referenced Model.
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    public boolean isAttribute() {
+        return attribute;
+    }
+
+    public boolean isReference() {
+        return reference;
+    }
+
+    /**
+     * Check whether this is a Reference held through a {@link LazyReference}.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Check whether this field belongs to a Model with
+     * {@link Encoding#BINARY} encoding.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Check whether this Attribute also has a sorted index, searchable by
+     * range.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public boolean isArray() {
+        return array != null;
+    }
+
+    public Array getArray() {
+        return array;
+    }
+
+    /**
+     * Whether the elements of this Array are primitives or Models, detected
+     * on first use only.
+     */
+    public JOhmCollectionDataType getArrayElementType() {
+        JOhmCollectionDataType elementType = arrayElementType;
+        if (elementType == null) {
+            elementType = JOhmUtils.detectJOhmCollectionDataType(array.of());
+            arrayElementType = elementType;
+        }
+        return elementType;
+    }
+
+    public boolean isCollection() {
+        return collection != null;
+    }
+
+    public Annotation getCollection() {
+        return collection;
+    }
+
+    /**
+     * Check whether this is a {@link Lob}, stored in its own key.
+     */
+    public boolean isLob() {
+        return lob;
+    }
+
+    /**
+     * Read this field from the given model.
+     */
+    public Object get(final Object model) {
+        try {
+            return field.get(model);
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+
+    /**
+     * Write this field on the given model.
+     */
+    public void set(final Object model, final Object value) {
+        try {
+            field.set(model, value);
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+
+    /**
+     * Read the id of the model this Reference refers to on the given model,
+     * without loading it.
+     * 
+     * @return null if the reference is not set.
+     */
+    public String getReferenceId(final Object model) {
+        Object value = get(model);
+        if (value == null) {
+            return null;
+        }
+        return lazy ? ((LazyReference<?>) value).getId() : JOhmUtils.getId(value);
+    }
+
+    /**
+     * Read the id of the model this Reference refers to on the given model,
+     * in the form it is stored in the model hash.
+     * 
+     * @return null if the reference is not set.
+     */
+    public String encodeReference(final Object model) {
+        String id = getReferenceId(model);
+        return binary && id != null ? BinaryEncoding.toStored(id) : id;
+    }
+
+    /**
+     * Convert a referenced id read from the model hash back into the id.
+     */
+    public String decodeReference(final String value) {
+        return binary ? BinaryEncoding.fromStored(value) : value;
+    }
+
+    /**
+     * Read the model this Reference refers to on the given model, if it is in
+     * memory. A lazy Reference that has not been loaded is not loaded.
+     * 
+     * @return null if the reference is not set or not loaded.
+     */
+    public Object getReferenced(final Object model) {
+        Object value = get(model);
+        if (value != null && lazy) {
+            LazyReference<?> handle = (LazyReference<?>) value;
+            return handle.isLoaded() ? handle.get() : null;
+        }
+        return value;
+    }
+
+    /**
+     * Decode a value read from Redis onto this Attribute of the given model.
+     */
+    public void decode(final Object model, final String value) {
+        try {
+            codec.decode(model, value);
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+
+    /**
+     * Encode this Attribute of the given model into its Redis string form.
+     * 
+     * @return null if the attribute is null.
+     */
+    public String encode(final Object model) {
+        try {
+            return codec.encode(model);
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+
+    /**
+     * Convert a value read from Redis into this field's type.
+     */
+    public Object toObject(final String value) {
+        if (!binary) {
+            return JOhmUtils.converter.getAsObject(field, value);
+        }
+        if (BinaryEncoding.supports(type)) {
+            return BinaryEncoding.toObject(type, value);
+        }
+        return JOhmUtils.converter.getAsObject(field, BinaryEncoding.fromStored(value));
+    }
+
+    private static FieldCodec codecOf(final Field field) {
+        final Converter converter = JOhmUtils.converter;
+        if (converter instanceof CodecConverter) {
+            return ((CodecConverter) converter).getCodec(field);
+        }
+        return new FieldCodec() {
+            public void decode(Object model, String value) throws IllegalAccessException {
+                field.set(model, converter.getAsObject(field, value));
+            }
+
+            public String encode(Object model) throws IllegalAccessException {
+                Object value = field.get(model);
+                return value == null ? null : converter.getAsString(field, value);
+            }
+        };
+    }
+
+    private static Annotation findCollectionAnnotation(final Field field) {
+        if (field.isAnnotationPresent(CollectionList.class)) {
+            return field.getAnnotation(CollectionList.class);
+        }
+        if (field.isAnnotationPresent(CollectionSet.class)) {
+            return field.getAnnotation(CollectionSet.class);
+        }
+        if (field.isAnnotationPresent(CollectionSortedSet.class)) {
+            return field.getAnnotation(CollectionSortedSet.class);
+        }
+        if (field.isAnnotationPresent(CollectionMap.class)) {
+            return field.getAnnotation(CollectionMap.class);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,95 @@
+package redis.clients.johm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdAllocator hands out the Long ids of new models with the hi/lo scheme:
+ * each JVM reserves a block of blockSize ids at once with a single INCRBY of
+ * the Class:id counter, then hands them out from an AtomicLong without going
+ * back to Redis until the block is used up. Ids are unique across JVMs, and
+ * increasing within one JVM, but the ids left in a block when a JVM stops are
+ * never used.
+ *
+ * With the default block size of 1, every id costs an INCRBY 1, as it did
+ * with INCR before.
+ */
+final class IdAllocator {
+    private static final ConcurrentMap<String, IdAllocator> allocators = new ConcurrentHashMap<String, IdAllocator>();
+    private static volatile int blockSize = 1;
+
+    private volatile Block block;
+
+    /**
+     * @param blockSize
+     *            the number of ids reserved at once, from the next block on.
+     */
+    static void setBlockSize(final int blockSize) {
+        if (blockSize < 1) {
+            throw new JOhmException("Id block size must be a positive number",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        IdAllocator.blockSize = blockSize;
+    }
+
+    static int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Forget every block reserved so far, as when the pool moves to another
+     * Redis.
+     */
+    static void reset() {
+        allocators.clear();
+    }
+
+    /**
+     * The next id of the given Model, whose Class:id counter is incremented
+     * through the given Nest of the Model.
+     */
+    static long nextId(final ModelMetadata metadata, final Nest<?> nest) {
+        IdAllocator allocator = allocators.get(metadata.getName());
+        if (allocator == null) {
+            allocator = new IdAllocator();
+            IdAllocator existing = allocators.putIfAbsent(metadata.getName(), allocator);
+            if (existing != null) {
+                allocator = existing;
+            }
+        }
+        return allocator.next(nest);
+    }
+
+    private long next(final Nest<?> nest) {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                long id = current.next.getAndIncrement();
+                if (id <= current.last) {
+                    return id;
+                }
+            }
+            synchronized (this) {
+                if (block == current) {
+                    int size = blockSize;
+                    long last = nest.cat("id").incrBy(size);
+                    block = new Block(last - size + 1, last);
+                }
+            }
+        }
+    }
+
+    /**
+     * A block of reserved ids, handed out from next to last.
+     */
+    private static final class Block {
+        private final AtomicLong next;
+        private final long last;
+
+        Block(final long first, final long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+        }
+    }
+}
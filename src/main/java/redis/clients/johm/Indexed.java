@@ -8,5 +8,11 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface Indexed {
-
+    /**
+     * Also keep the ids of models in a sorted set scored by the value of this
+     * Attribute, so that they can be searched by a range of values with
+     * JOhm.findRange. Only numeric and Date Attributes can be sorted; values
+     * are scored as doubles, so longs beyond 2^53 lose precision.
+     */
+    boolean sorted() default false;
 }
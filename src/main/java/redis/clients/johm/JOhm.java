@@ -1,19 +1,18 @@
 package redis.clients.johm;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.TransactionBlock;
-import redis.clients.jedis.exceptions.JedisException;
-import redis.clients.johm.collections.RedisArray;
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.SortingParams;
+import redis.clients.util.SafeEncoder;
 
 /**
  * JOhm serves as the delegate responsible for heavy-lifting all mapping
@@ -21,7 +20,9 @@ import redis.clients.johm.collections.RedisArray;
  * on the other.
  */
 public final class JOhm {
+    private static final int MAX_INCREMENT_ATTEMPTS = 16;
     private static JedisPool jedisPool;
+    private static volatile int batchSize = 500;
 
     /**
      * Read the id from the given model. This operation will typically be useful
@@ -41,39 +42,93 @@ public final class JOhm {
 
     /**
      * Load the model persisted in Redis looking it up by its id and Class type.
+     * The model hash and its arrays are read in one pipelined round trip, and
+     * referenced models in one more round trip per level of references.
      * 
      * @param <T>
      * @param clazz
      * @param id
      * @return null if not found.
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @SuppressWarnings("unchecked")
     public static <T> T get(Class<?> clazz, String id) {
-        JOhmUtils.Validator.checkValidModelClazz(clazz);
+        Session session = openSession();
+        try {
+            return (T) new ModelLoader(jedisPool, batchSize).load(clazz, id);
+        } finally {
+            session.close();
+        }
+    }
 
-        Nest nest = new Nest(clazz);
-        nest.setJedisPool(jedisPool);
-        if (!nest.cat(id).exists()) {
-            return null;
+    /**
+     * Load several models persisted in Redis by their ids and Class type. The
+     * model hashes are fetched in pipelines of at most {@link #getBatchSize()}
+     * commands rather than with one round trip per model.
+     * 
+     * @param clazz
+     * @param ids
+     * @return the models in the order of the given ids, with null for every
+     *         id that was not found.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> getAll(Class<?> clazz, Collection<String> ids) {
+        Session session = openSession();
+        try {
+            return (List<T>) new ModelLoader(jedisPool, batchSize).loadAll(clazz, ids);
+        } finally {
+            session.close();
         }
+    }
 
-        Object newInstance;
+    /**
+     * Load only the given fields of a model persisted in Redis. The
+     * attributes and references named are read with a single HMGET, and only
+     * the arrays named are read; every other field is left unset, and the
+     * referenced models named are loaded whole. Such a partial model is
+     * neither taken from nor kept in the Session and near cache, and saving
+     * it would also write the fields it was not loaded with.
+     * 
+     * @param clazz
+     * @param id
+     * @param fieldNames
+     *            names of attributes, references or arrays of the Model
+     * @return null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(Class<?> clazz, String id, String... fieldNames) {
+        Session session = openSession();
         try {
-            newInstance = clazz.newInstance();
-            JOhmUtils.loadId(newInstance, id);
-            JOhmUtils.initCollections(newInstance, nest);
-
-            Map<String, String> hashedObject = nest.cat(id).hgetAll();
-            for (Field field : JOhmUtils.gatherAllFields(clazz)) {
-                fillField(hashedObject, newInstance, field);
-                fillArrayField(nest, newInstance, field);
-            }
+            return (T) new ModelLoader(jedisPool, batchSize).load(clazz, id, fieldNames);
+        } finally {
+            session.close();
+        }
+    }
+
+    public static <T> T get(Class<?> clazz, long id, String... fieldNames) {
+        return JOhm.<T> get(clazz, Long.toString(id), fieldNames);
+    }
 
-            return (T) newInstance;
-        } catch (InstantiationException e) {
-            throw new JOhmException(e, JOhmExceptionMeta.INSTANTIATION_EXCEPTION);
-        } catch (IllegalAccessException e) {
-            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+    /**
+     * Load only the given fields of several models, as
+     * {@link #get(Class, String, String...)} does, in pipelines of at most
+     * {@link #getBatchSize()} commands.
+     * 
+     * @param clazz
+     * @param ids
+     * @param fieldNames
+     *            names of attributes, references or arrays of the Model
+     * @return the models in the order of the given ids, with null for every
+     *         id that was not found.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> getAll(Class<?> clazz, Collection<String> ids,
+            String... fieldNames) {
+        Session session = openSession();
+        try {
+            return (List<T>) new ModelLoader(jedisPool, batchSize).loadAll(clazz, ids,
+                    fieldNames);
+        } finally {
+            session.close();
         }
     }
 
@@ -91,6 +146,108 @@ public final class JOhm {
         return get(clazz, id.toString());
     }
 
+    /**
+     * Check whether a model of the given Class type is persisted with the
+     * given id, without loading it.
+     * 
+     * @param clazz
+     * @param id
+     * @return
+     */
+    public static boolean exists(Class<?> clazz, String id) {
+        Nest<?> nest = new Nest<Object>(ModelMetadata.of(clazz).keyOf(id));
+        nest.setJedisPool(jedisPool);
+        return nest.exists();
+    }
+
+    public static boolean exists(Class<?> clazz, long id) {
+        return exists(clazz, Long.toString(id));
+    }
+
+    public static boolean exists(Class<?> clazz, UUID id) {
+        return exists(clazz, id.toString());
+    }
+
+    /**
+     * Check which of the given ids are persisted models of the given Class
+     * type, in one pipelined round trip and without loading them.
+     * 
+     * @param clazz
+     * @param ids
+     * @return whether each id, in the given order, is persisted.
+     */
+    public static List<Boolean> existsAll(Class<?> clazz, Collection<String> ids) {
+        final ModelMetadata metadata = ModelMetadata.of(clazz);
+        final List<String> keys = new ArrayList<String>(ids.size());
+        for (String id : ids) {
+            keys.add(metadata.keyOf(id));
+        }
+        final List<Response<Boolean>> replies = new ArrayList<Response<Boolean>>(keys.size());
+        Nest<?> nest = new Nest<Object>();
+        nest.setJedisPool(jedisPool);
+        nest.pipelined(new PipelineBlock() {
+            public void execute() {
+                for (String key : keys) {
+                    replies.add(exists(key));
+                }
+            }
+        });
+        List<Boolean> exists = new ArrayList<Boolean>(replies.size());
+        for (Response<Boolean> reply : replies) {
+            exists.add(reply.get());
+        }
+        return exists;
+    }
+
+    /**
+     * Count the Models with the given indexed attribute name/value pair,
+     * without loading them.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of Model's attribute to search, can not be null!
+     * @param attributeValue
+     *            Attribute's value to search in index, can not be null!
+     * @return
+     */
+    public static long count(Class<?> clazz, String attributeName, Object attributeValue) {
+        Nest<?> nest = indexNest(clazz, attributeName, attributeValue);
+        return nest.scard();
+    }
+
+    /**
+     * Count all the persisted Models of a Class annotated with
+     * {@link SupportAll}, without loading them.
+     * 
+     * @param clazz
+     * @return
+     */
+    public static long countAll(Class<?> clazz) {
+        JOhmUtils.Validator.checkSupportAll(clazz);
+        Nest<?> nest = new Nest<Object>(ModelMetadata.of(clazz).getName());
+        nest.setJedisPool(jedisPool);
+        return nest.cat("all").scard();
+    }
+
+    /**
+     * Search the ids of the Models with the given indexed attribute
+     * name/value pair, without loading them.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of Model's attribute to search, can not be null!
+     * @param attributeValue
+     *            Attribute's value to search in index, can not be null!
+     * @return
+     */
+    public static Set<String> findIds(Class<?> clazz, String attributeName,
+            Object attributeValue) {
+        Nest<?> nest = indexNest(clazz, attributeName, attributeValue);
+        return nest.smembers();
+    }
+
     /**
      * Search a Model in redis index using its attribute's given name/value
      * pair. This can potentially return more than 1 matches if some indexed
@@ -104,48 +261,185 @@ public final class JOhm {
      *            Attribute's value to search in index, can not be null!
      * @return
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public static <T> List<T> find(Class<?> clazz, String attributeName,
             Object attributeValue) {
-        JOhmUtils.Validator.checkValidModelClazz(clazz);
-        List<Object> results = null;
-        if (!JOhmUtils.Validator.isIndexable(attributeName)) {
-            throw new InvalidFieldException();
-        }
+        return JOhm.<T> find(clazz, attributeName, attributeValue, 0);
+    }
 
+    /**
+     * Search a Model in redis index using its attribute's given name/value
+     * pair, returning at most maxResults matches. Matches are hydrated in
+     * pipelined batches of {@link #getBatchSize()} models.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of Model's attribute to search, can not be null!
+     * @param attributeValue
+     *            Attribute's value to search in index, can not be null!
+     * @param maxResults
+     *            Maximum number of matches to load, 0 for no limit
+     * @return
+     */
+    public static <T> List<T> find(Class<?> clazz, String attributeName,
+            Object attributeValue, int maxResults) {
+        return JOhm.<T> find(clazz, attributeName, attributeValue, maxResults,
+                new String[0]);
+    }
+
+    /**
+     * Search a Model in redis index as {@link #find(Class, String, Object, int)}
+     * does, loading only the given fields of the matches as
+     * {@link #get(Class, String, String...)} does.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of Model's attribute to search, can not be null!
+     * @param attributeValue
+     *            Attribute's value to search in index, can not be null!
+     * @param maxResults
+     *            Maximum number of matches to load, 0 for no limit
+     * @param fieldNames
+     *            names of attributes, references or arrays to load, none to
+     *            load whole models
+     * @return
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static <T> List<T> find(Class<?> clazz, String attributeName,
+            Object attributeValue, int maxResults, String... fieldNames) {
+        Session session = openSession();
         try {
-            Field field = clazz.getDeclaredField(attributeName);
-            field.setAccessible(true);
-            if (!field.isAnnotationPresent(Indexed.class)) {
-                throw new InvalidFieldException();
+            Nest nest = indexNest(clazz, attributeName, attributeValue);
+            Collection<String> modelIdStrings;
+            if (maxResults > 0) {
+                modelIdStrings = nest.sort(new SortingParams().nosort().limit(0,
+                        maxResults));
+            } else {
+                modelIdStrings = nest.smembers();
             }
-            if (field.isAnnotationPresent(Reference.class)) {
-                attributeName = JOhmUtils.getReferenceKeyName(field);
+            List<Object> results = null;
+            if (modelIdStrings != null) {
+                results = new ArrayList<Object>(modelIdStrings.size());
+                for (Object indexed : getAll(clazz, modelIdStrings, fieldNames)) {
+                    if (indexed != null) {
+                        results.add(indexed);
+                    }
+                }
             }
-        } catch (SecurityException e) {
-            throw new InvalidFieldException();
-        } catch (NoSuchFieldException e) {
-            throw new InvalidFieldException();
+            return (List<T>) results;
+        } finally {
+            session.close();
         }
-        if (JOhmUtils.isNullOrEmpty(attributeValue)) {
+    }
+
+    /**
+     * Start a query combining several indexed name/value criteria with and,
+     * or and not. See {@link Query}.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @return
+     */
+    public static <T> Query<T> query(Class<?> clazz) {
+        return new Query<T>(clazz, jedisPool);
+    }
+
+    /**
+     * Search Models by a range of values of an Attribute with a sorted
+     * index, in ascending order of that attribute.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of a Model's attribute Indexed with sorted = true
+     * @param min
+     *            Smallest value to match, a number or a Date, null for no
+     *            lower bound
+     * @param max
+     *            Greatest value to match, a number or a Date, null for no
+     *            upper bound
+     * @param offset
+     *            Number of matches to skip
+     * @param limit
+     *            Maximum number of matches to load, 0 for no limit
+     * @return
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static <T> List<T> findRange(Class<?> clazz, String attributeName, Object min,
+            Object max, int offset, int limit) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        FieldMetadata field = metadata.getField(attributeName);
+        if (field == null || !field.isSorted()) {
             throw new InvalidFieldException();
         }
-        Nest nest = new Nest(clazz);
+        Nest nest = new Nest(metadata.sortedIndexKeyOf(field));
         nest.setJedisPool(jedisPool);
-        Set<String> modelIdStrings = nest.cat(attributeName).cat(attributeValue)
-                .smembers();
-        if (modelIdStrings != null) {
-            // TODO: Do this lazy
-            results = new ArrayList<Object>();
-            Object indexed = null;
-            for (String modelIdString : modelIdStrings) {
-                indexed = get(clazz, modelIdString);
+        Session session = openSession();
+        try {
+            Set<String> modelIdStrings = nest.zrangeByScore(min == null ? "-inf" : String
+                    .valueOf(JOhmUtils.toScore(min)), max == null ? "+inf" : String
+                    .valueOf(JOhmUtils.toScore(max)), offset, limit > 0 ? limit : -1);
+            List<Object> results = new ArrayList<Object>(modelIdStrings.size());
+            for (Object indexed : getAll(clazz, modelIdStrings)) {
                 if (indexed != null) {
                     results.add(indexed);
                 }
             }
+            return (List<T>) results;
+        } finally {
+            session.close();
+        }
+    }
+
+    public static <T> List<T> findRange(Class<?> clazz, String attributeName, Object min,
+            Object max) {
+        return JOhm.<T> findRange(clazz, attributeName, min, max, 0, 0);
+    }
+
+    /**
+     * Lazily iterate the Models matching the given indexed attribute
+     * name/value pair. The index set is walked with SSCAN and the models are
+     * hydrated batchSize at a time, so memory stays bounded regardless of the
+     * number of matches.
+     * 
+     * @param clazz
+     *            Class of Model annotated-type to search
+     * @param attributeName
+     *            Name of Model's attribute to search, can not be null!
+     * @param attributeValue
+     *            Attribute's value to search in index, can not be null!
+     * @param batchSize
+     *            Number of ids requested per SSCAN and hydrated per page
+     * @return
+     */
+    public static <T> ModelCursor<T> scanFind(Class<?> clazz, String attributeName,
+            Object attributeValue, int batchSize) {
+        String setKey = indexNest(clazz, attributeName, attributeValue).key();
+        return new ModelCursor<T>(clazz, setKey, batchSize, jedisPool);
+    }
+
+    /**
+     * Check that the given attribute can be searched and point a Nest at the
+     * index set holding the ids of models with the given attribute value.
+     */
+    static Nest<?> indexNest(Class<?> clazz, String attributeName,
+            Object attributeValue) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        if (!JOhmUtils.Validator.isIndexable(attributeName)) {
+            throw new InvalidFieldException();
         }
-        return (List<T>) results;
+
+        FieldMetadata field = metadata.getField(attributeName);
+        if (field == null || !field.isIndexed()) {
+            throw new InvalidFieldException();
+        }
+        if (JOhmUtils.isNullOrEmpty(attributeValue)) {
+            throw new InvalidFieldException();
+        }
+        Nest<?> nest = new Nest<Object>(metadata.getName());
+        nest.setJedisPool(jedisPool);
+        return nest.cat(field.getStorageKey()).cat(attributeValue);
     }
 
     /**
@@ -161,99 +455,262 @@ public final class JOhm {
         return JOhm.<T> save(model, false);
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public static <T> T save(final Object model, boolean saveChildren) {
-        if (!isNew(model)) {
-            delete(model.getClass(), JOhmUtils.getId(model));
+        Session session = openSession();
+        try {
+            return JOhm.<T> persist(model, saveChildren);
+        } finally {
+            session.close();
         }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T> T persist(final Object model, boolean saveChildren) {
+        final ModelMetadata metadata = ModelMetadata.of(model.getClass());
+        boolean mayBeStored = !isNew(model);
         final Nest nest = initIfNeeded(model);
 
-        final Map<String, String> hashedObject = new HashMap<String, String>();
-        Map<RedisArray<Object>, Object[]> pendingArraysToPersist = null;
-        try {
-            String fieldName = null;
-            for (Field field : JOhmUtils.gatherAllFields(model.getClass())) {
-                field.setAccessible(true);
-                if (JOhmUtils.detectJOhmCollection(field)
-                        || field.isAnnotationPresent(Id.class)) {
-                    if (field.isAnnotationPresent(Id.class)) {
-                        JOhmUtils.Validator.checkValidIdType(field);
-                    }
-                    continue;
+        for (FieldMetadata reference : metadata.getReferences()) {
+            if (reference.get(model) != null) {
+                if (reference.getReferenceId(model) == null) {
+                    throw new MissingIdException();
                 }
-                if (field.isAnnotationPresent(Array.class)) {
-                    Object[] backingArray = (Object[]) field.get(model);
-                    int actualLength = backingArray == null ? 0 : backingArray.length;
-                    JOhmUtils.Validator.checkValidArrayBounds(field, actualLength);
-                    Array annotation = field.getAnnotation(Array.class);
-                    RedisArray<Object> redisArray = new RedisArray<Object>(
-                            annotation.length(), annotation.of(), nest, field, model);
-                    if (pendingArraysToPersist == null) {
-                        pendingArraysToPersist = new LinkedHashMap<RedisArray<Object>, Object[]>();
-                    }
-                    pendingArraysToPersist.put(redisArray, backingArray);
+                Object child = reference.getReferenced(model);
+                if (saveChildren && child != null) {
+                    save(child, saveChildren); // some more work to do
                 }
-                JOhmUtils.Validator.checkAttributeReferenceIndexRules(field);
-                if (field.isAnnotationPresent(Attribute.class)) {
-                    fieldName = field.getName();
-                    Object fieldValueObject = field.get(model);
-                    if (fieldValueObject != null) {
-                        String fieldValue = JOhmUtils.converter.getAsString(field,
-                                fieldValueObject);
-                        hashedObject.put(fieldName, fieldValue);
-                    }
+            }
+        }
+        for (FieldMetadata array : metadata.getArrays()) {
+            Object[] backingArray = (Object[]) array.get(model);
+            int actualLength = backingArray == null ? 0 : backingArray.length;
+            JOhmUtils.Validator.checkValidArrayBounds(array.getField(), actualLength);
+        }
 
-                }
-                if (field.isAnnotationPresent(Reference.class)) {
-                    fieldName = JOhmUtils.getReferenceKeyName(field);
-                    Object child = field.get(model);
-                    if (child != null) {
-                        if (JOhmUtils.getId(child) == null) {
-                            throw new MissingIdException();
-                        }
-                        if (saveChildren) {
-                            save(child, saveChildren); // some more work to do
-                        }
-                        hashedObject.put(fieldName,
-                                String.valueOf(JOhmUtils.getId(child)));
-                    }
-                }
-                if (field.isAnnotationPresent(Indexed.class)) {
-                    Object fieldValue = field.get(model);
-                    if (fieldValue != null && field.isAnnotationPresent(Reference.class)) {
-                        fieldValue = JOhmUtils.getId(fieldValue);
-                    }
-                    if (!JOhmUtils.isNullOrEmpty(fieldValue)) {
-                        nest.cat(fieldName).cat(fieldValue)
-                                .sadd(String.valueOf(JOhmUtils.getId(model)));
-                    }
-                }
+        new ModelWriter(nest, model).write(mayBeStored);
+        Session session = Session.current(jedisPool);
+        if (session != null) {
+            session.register(metadata.keyOf(metadata.getId(model)), model);
+        }
+        return (T) model;
+    }
+
+    /**
+     * Update some attributes, references and arrays of a persisted model,
+     * leaving the rest of its stored state untouched. The named fields are
+     * compared with their stored values, and only those that changed are
+     * written, with HMSET/HDEL, along with their index entries. If no field is
+     * named, every attribute, reference and array of the model is checked.
+     * Referenced models are not saved.
+     * 
+     * @param model
+     * @param fieldNames
+     * @return false if the model is not persisted, in which case nothing is
+     *         written.
+     */
+    public static boolean update(final Object model, final String... fieldNames) {
+        ModelMetadata metadata = ModelMetadata.of(model.getClass());
+        if (isNew(model)) {
+            throw new MissingIdException();
+        }
+        List<FieldMetadata> hashFields = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> arrays = new ArrayList<FieldMetadata>();
+        if (fieldNames.length == 0) {
+            hashFields.addAll(metadata.getAttributes());
+            hashFields.addAll(metadata.getReferences());
+            arrays.addAll(metadata.getArrays());
+        }
+        for (String fieldName : fieldNames) {
+            FieldMetadata field = metadata.getField(fieldName);
+            if (field == null) {
+                throw new InvalidFieldException();
+            }
+            if (field.isAttribute() || field.isReference()) {
+                hashFields.add(field);
+            } else if (field.isArray()) {
+                arrays.add(field);
+            } else {
+                throw new InvalidFieldException();
+            }
+        }
+        for (FieldMetadata field : hashFields) {
+            if (field.isReference() && field.get(model) != null
+                    && field.getReferenceId(model) == null) {
+                throw new MissingIdException();
             }
-        } catch (IllegalArgumentException e) {
-            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
-        } catch (IllegalAccessException e) {
-            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
         }
+        for (FieldMetadata array : arrays) {
+            Object[] backingArray = (Object[]) array.get(model);
+            int actualLength = backingArray == null ? 0 : backingArray.length;
+            JOhmUtils.Validator.checkValidArrayBounds(array.getField(), actualLength);
+        }
+
+        Session session = openSession();
+        try {
+            session.evict(metadata.keyOf(metadata.getId(model)));
+            Nest<?> nest = new Nest<Object>(model);
+            nest.setJedisPool(jedisPool);
+            return new ModelWriter(nest, model).update(hashFields, arrays);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Atomically add delta to an integral numeric attribute of a persisted
+     * model with HINCRBY, keeping its index up to date if it is indexed. The
+     * rest of the model is neither read nor written. An increment that would
+     * overflow the attribute type is rejected.
+     * 
+     * @param clazz
+     * @param id
+     * @param attributeName
+     *            Name of an int, long, short or byte attribute
+     * @param delta
+     * @return the new value, or null if the model is not persisted.
+     */
+    public static Long increment(Class<?> clazz, String id, String attributeName,
+            long delta) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        FieldMetadata field = incrementedField(metadata, attributeName, false);
+        long[] bounds = boundsOf(field.getType());
+        Object reply = increment(metadata, field, id, "integer", String.valueOf(delta),
+                bounds == null ? "" : String.valueOf(bounds[0]),
+                bounds == null ? "" : String.valueOf(bounds[1]));
+        if (reply instanceof Long) {
+            throw new JOhmException("Incrementing " + attributeName + " by " + delta
+                    + " would overflow", JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        return reply == null ? null : Long.valueOf(SafeEncoder.encode((byte[]) reply));
+    }
+
+    public static Long increment(Class<?> clazz, long id, String attributeName,
+            long delta) {
+        return increment(clazz, String.valueOf(id), attributeName, delta);
+    }
 
-        nest.multi(new TransactionBlock() {
-            public void execute() throws JedisException {
-                // to support getAll
-                if (model.getClass().isAnnotationPresent(SupportAll.class)) {
-                    nest.cat("all").sadd(String.valueOf(JOhmUtils.getId(model)));
+    /**
+     * Atomically add delta to a floating point attribute of a persisted model,
+     * keeping its index up to date if it is indexed. The rest of the model is
+     * neither read nor written. The new value is computed and rendered here,
+     * as Java renders doubles and floats, and only written if the attribute
+     * has not changed since it was read.
+     * 
+     * @param clazz
+     * @param id
+     * @param attributeName
+     *            Name of a double or float attribute
+     * @param delta
+     * @return the new value, or null if the model is not persisted.
+     */
+    public static Double increment(Class<?> clazz, String id, String attributeName,
+            double delta) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        FieldMetadata field = incrementedField(metadata, attributeName, true);
+        boolean isFloat = field.getType().equals(Float.class)
+                || field.getType().equals(float.class);
+        Nest<?> nest = new Nest<Object>(metadata.keyOf(id));
+        nest.setJedisPool(jedisPool);
+        Session session = openSession();
+        try {
+            for (int attempt = 1; attempt <= MAX_INCREMENT_ATTEMPTS; attempt++) {
+                String old = nest.hget(field.getStorageKey());
+                double sum = (old == null ? 0 : Double.parseDouble(old)) + delta;
+                String value = isFloat ? String.valueOf((float) sum) : String.valueOf(sum);
+                Object reply = increment(metadata, field, id, "float",
+                        old == null ? "" : old, value);
+                if (!(reply instanceof Long)) {
+                    return reply == null ? null : Double.valueOf(value);
                 }
-                del(nest.cat(JOhmUtils.getId(model)).key());
-                hmset(nest.cat(JOhmUtils.getId(model)).key(), hashedObject);
             }
-        });
+        } finally {
+            session.close();
+        }
+        throw new JOhmException(metadata.keyOf(id) + " kept being written concurrently",
+                JOhmExceptionMeta.GENERIC_EXCEPTION);
+    }
 
-        if (pendingArraysToPersist != null && pendingArraysToPersist.size() > 0) {
-            for (Map.Entry<RedisArray<Object>, Object[]> arrayEntry : pendingArraysToPersist
-                    .entrySet()) {
-                arrayEntry.getKey().write(arrayEntry.getValue());
-            }
+    public static Double increment(Class<?> clazz, long id, String attributeName,
+            double delta) {
+        return increment(clazz, String.valueOf(id), attributeName, delta);
+    }
+
+    /**
+     * Check that the given attribute can be incremented.
+     */
+    private static FieldMetadata incrementedField(ModelMetadata metadata,
+            String attributeName, boolean floating) {
+        FieldMetadata field = metadata.getField(attributeName);
+        if (field == null || !field.isAttribute() || field.isBinary()
+                || metadata.isBlob()
+                || !(floating ? isFloating(field.getType()) : isIntegral(field.getType()))) {
+            throw new InvalidFieldException();
         }
+        return field;
+    }
 
-        return (T) model;
+    /**
+     * Run the increment script: update the attribute, then move the model
+     * from the index set of the old value to the one of the new value, all in
+     * a single atomic step.
+     * 
+     * @return the new value, null if the model is not persisted, or 0 if the
+     *         increment was not applied.
+     */
+    private static Object increment(ModelMetadata metadata, FieldMetadata field,
+            String id, String mode, String... operands) {
+        Nest<?> nest = new Nest<Object>(metadata.getName());
+        nest.setJedisPool(jedisPool);
+        String indexPrefix = field.isIndexed() ? nest.cat(field.getStorageKey()).key()
+                + ":" : "";
+        List<byte[]> args = new ArrayList<byte[]>(5 + operands.length);
+        args.add(SafeEncoder.encode(field.getStorageKey()));
+        args.add(SafeEncoder.encode(mode));
+        args.add(SafeEncoder.encode(indexPrefix));
+        args.add(SafeEncoder.encode(id));
+        args.add(SafeEncoder.encode(field.isSorted() ? metadata.sortedIndexKeyOf(field) : ""));
+        for (String operand : operands) {
+            args.add(SafeEncoder.encode(operand));
+        }
+        Session session = openSession();
+        try {
+            session.evict(metadata.keyOf(id));
+            Object reply = nest.cat(id).evalsha(LuaScript.INCREMENT, args);
+            invalidateNearCache(metadata, id);
+            return reply;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The range of values of an integral type narrower than long.
+     * 
+     * @return null for long.
+     */
+    private static long[] boundsOf(final Class<?> type) {
+        if (type.equals(Integer.class) || type.equals(int.class)) {
+            return new long[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+        }
+        if (type.equals(Short.class) || type.equals(short.class)) {
+            return new long[] { Short.MIN_VALUE, Short.MAX_VALUE };
+        }
+        if (type.equals(Byte.class) || type.equals(byte.class)) {
+            return new long[] { Byte.MIN_VALUE, Byte.MAX_VALUE };
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(final Class<?> type) {
+        return type.equals(Integer.class) || type.equals(int.class)
+                || type.equals(Long.class) || type.equals(long.class)
+                || type.equals(Short.class) || type.equals(short.class)
+                || type.equals(Byte.class) || type.equals(byte.class);
+    }
+
+    private static boolean isFloating(final Class<?> type) {
+        return type.equals(Double.class) || type.equals(double.class)
+                || type.equals(Float.class) || type.equals(float.class);
     }
 
     /**
@@ -287,7 +744,9 @@ public final class JOhm {
     @SuppressWarnings("unchecked")
 	public static <T> Long expire(T model, int seconds) {
         Nest<T> nest = initIfNeeded(model);
-        return nest.cat(JOhmUtils.getId(model)).expire(seconds);
+        Long expire = nest.cat(JOhmUtils.getId(model)).expire(seconds);
+        invalidateNearCache(ModelMetadata.of(model.getClass()), JOhmUtils.getId(model));
+        return expire;
     }
 
     public static boolean delete(Class<?> clazz, long id, boolean deleteIndexes,
@@ -300,75 +759,120 @@ public final class JOhm {
         return delete(clazz, id.toString(), deleteIndexes, deleteChildren);
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public static boolean delete(Class<?> clazz, String id, boolean deleteIndexes,
             boolean deleteChildren) {
-        JOhmUtils.Validator.checkValidModelClazz(clazz);
-        boolean deleted = false;
-        Object persistedModel = get(clazz, id);
-        if (persistedModel != null) {
-            Nest nest = new Nest(persistedModel);
-            nest.setJedisPool(jedisPool);
-            if (deleteIndexes) {
-                // think about promoting deleteChildren as default behavior so
-                // that this field lookup gets folded into that
-                // if-deleteChildren block
-                for (Field field : JOhmUtils.gatherAllFields(clazz)) {
-                    if (field.isAnnotationPresent(Indexed.class)) {
-                        field.setAccessible(true);
-                        Object fieldValue = null;
-                        try {
-                            fieldValue = field.get(persistedModel);
-                        } catch (IllegalArgumentException e) {
-                            throw new JOhmException(e,
-                                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
-                        } catch (IllegalAccessException e) {
-                            throw new JOhmException(e,
-                                    JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
-                        }
-                        if (fieldValue != null
-                                && field.isAnnotationPresent(Reference.class)) {
-                            fieldValue = JOhmUtils.getId(fieldValue);
-                        }
-                        if (!JOhmUtils.isNullOrEmpty(fieldValue)) {
-                            nest.cat(field.getName()).cat(fieldValue)
-                                    .srem(String.valueOf(id));
-                        }
-                    }
-                }
-            }
-            if (deleteChildren) {
-                for (Field field : JOhmUtils.gatherAllFields(clazz)) {
-                    if (field.isAnnotationPresent(Reference.class)) {
-                        field.setAccessible(true);
-                        try {
-                            Object child = field.get(persistedModel);
-                            if (child != null) {
-                                delete(child.getClass(), JOhmUtils.getId(child),
-                                        deleteIndexes, deleteChildren); // children
-                            }
-                        } catch (IllegalArgumentException e) {
-                            throw new JOhmException(e,
-                                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
-                        } catch (IllegalAccessException e) {
-                            throw new JOhmException(e,
-                                    JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
-                        }
-                    }
-                    if (field.isAnnotationPresent(Array.class)) {
-                        field.setAccessible(true);
-                        Array annotation = field.getAnnotation(Array.class);
-                        RedisArray redisArray = new RedisArray(annotation.length(),
-                                annotation.of(), nest, field, persistedModel);
-                        redisArray.clear();
-                    }
-                }
+        Session session = openSession();
+        try {
+            session.evict(ModelMetadata.of(clazz).keyOf(id));
+            return remove(clazz, id, deleteIndexes, deleteChildren);
+        } finally {
+            session.close();
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static boolean remove(Class<?> clazz, String id, boolean deleteIndexes,
+            boolean deleteChildren) {
+        Nest nest = new Nest(clazz);
+        nest.setJedisPool(jedisPool);
+        Map<FieldMetadata, String> referenceIds = new ModelWriter(nest, clazz, id)
+                .delete(deleteIndexes);
+        if (referenceIds == null) {
+            return false;
+        }
+        if (deleteChildren) {
+            for (Map.Entry<FieldMetadata, String> child : referenceIds.entrySet()) {
+                delete(child.getKey().getType(), child.getValue(), deleteIndexes,
+                        deleteChildren); // children
             }
+        }
+        return true;
+    }
 
-            // now delete parent
-            deleted = nest.cat(id).del() == 1;
+    /**
+     * Drop a changed model from the near cache of this JVM, and tell the
+     * other JVMs to do the same, if its Model is Cached.
+     */
+    @SuppressWarnings("rawtypes")
+    private static void invalidateNearCache(final ModelMetadata metadata, final String id) {
+        NearCache cache = metadata.getNearCache();
+        if (cache != null) {
+            String key = metadata.keyOf(id);
+            cache.invalidate(key);
+            Nest nest = new Nest(NearCache.CHANNEL);
+            nest.setJedisPool(jedisPool);
+            nest.publish(key);
         }
-        return deleted;
+    }
+
+    /**
+     * Set the maximum number of models fetched in a single pipeline by bulk
+     * loads such as {@link #getAll(Class, Collection)}. Defaults to 500.
+     * 
+     * @param batchSize
+     */
+    public static void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new JOhmException("Batch size must be a positive number",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        JOhm.batchSize = batchSize;
+    }
+
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of Long ids reserved at once, with a single INCRBY of
+     * the Class:id counter, and then handed out to new models without going
+     * back to Redis. Ids stay unique across JVMs, but those left unused in a
+     * block when a JVM stops are skipped, and ids are only increasing within
+     * a JVM. Defaults to 1, which reserves every id on its own.
+     * 
+     * @param blockSize
+     */
+    public static void setIdBlockSize(final int blockSize) {
+        IdAllocator.setBlockSize(blockSize);
+    }
+
+    public static int getIdBlockSize() {
+        return IdAllocator.getBlockSize();
+    }
+
+    /**
+     * Deflate String attributes at least this many chars long, when that
+     * makes them shorter. Values stored before are still read, but models
+     * saved with compression can not be read by older versions of JOhm.
+     * Defaults to 0, which disables compression.
+     * 
+     * @param threshold
+     */
+    public static void setCompressionThreshold(final int threshold) {
+        Compression.setThreshold(threshold);
+    }
+
+    public static int getCompressionThreshold() {
+        return Compression.getThreshold();
+    }
+
+    /**
+     * Open a {@link Session} on the current thread so that all the JOhm
+     * operations made until it is closed share a single pooled connection.
+     * Joins the session already open on this thread, if any. Close it in a
+     * finally block, or with try-with-resources from Java 7 on:
+     * 
+     * <pre>
+     * Session session = JOhm.openSession();
+     * try {
+     *     ...
+     * } finally {
+     *     session.close();
+     * }
+     * </pre>
+     */
+    public static Session openSession() {
+        return Session.open(jedisPool);
     }
 
     /**
@@ -378,39 +882,15 @@ public final class JOhm {
      */
     public static JedisPool setPool(final JedisPool jedisPool) {
         JOhm.jedisPool = jedisPool;
-        return jedisPool;
-    }
-
-    private static void fillField(final Map<String, String> hashedObject,
-            final Object newInstance, final Field field) throws IllegalAccessException {
-        JOhmUtils.Validator.checkAttributeReferenceIndexRules(field);
-        if (field.isAnnotationPresent(Attribute.class)) {
-            field.setAccessible(true);
-            field.set(
-                    newInstance,
-                    JOhmUtils.converter.getAsObject(field,
-                            hashedObject.get(field.getName())));
-        }
-        if (field.isAnnotationPresent(Reference.class)) {
-            field.setAccessible(true);
-            String serializedReferenceId = hashedObject.get(JOhmUtils
-                    .getReferenceKeyName(field));
-            if (serializedReferenceId != null) {
-                field.set(newInstance, get(field.getType(), serializedReferenceId));
-            }
+        IdAllocator.reset();
+        if (jedisPool != null) {
+            LuaScript.loadAll(jedisPool);
         }
+        return jedisPool;
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static void fillArrayField(final Nest nest, final Object model,
-            final Field field) throws IllegalArgumentException, IllegalAccessException {
-        if (field.isAnnotationPresent(Array.class)) {
-            field.setAccessible(true);
-            Array annotation = field.getAnnotation(Array.class);
-            RedisArray redisArray = new RedisArray(annotation.length(), annotation.of(),
-                    nest, field, model);
-            field.set(model, redisArray.read());
-        }
+    static JedisPool getPool() {
+        return jedisPool;
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -421,9 +901,10 @@ public final class JOhm {
         if (id == null) {
             // lazily initialize id, nest, collections
 
-            Class<?> type = JOhmUtils.getIdField(model).getType();
+            Class<?> type = ModelMetadata.of(model.getClass()).getIdType();
             if (type.isAssignableFrom(Long.class) || type.isAssignableFrom(long.class)) {
-                id = Long.toString(nest.cat("id").incr());
+                id = Long.toString(IdAllocator.nextId(ModelMetadata.of(model.getClass()),
+                        nest));
             } else if (type.isAssignableFrom(String.class)
                     || type.isAssignableFrom(UUID.class)) {
                 id = UUID.randomUUID().toString();
@@ -441,22 +922,42 @@ public final class JOhm {
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public static <T> Set<T> getAll(Class<?> clazz) {
-        JOhmUtils.Validator.checkValidModelClazz(clazz);
-        JOhmUtils.Validator.checkSupportAll(clazz);
-        Set<Object> results = null;
-        Nest nest = new Nest(clazz);
-        nest.setJedisPool(jedisPool);
-        Set<String> modelIdStrings = nest.cat("all").smembers();
-        if (modelIdStrings != null) {
-            results = new HashSet<Object>();
-            Object indexed = null;
-            for (String modelIdString : modelIdStrings) {
-                indexed = get(clazz, modelIdString);
-                if (indexed != null) {
-                    results.add(indexed);
+        Session session = openSession();
+        try {
+            JOhmUtils.Validator.checkSupportAll(clazz);
+            Set<Object> results = null;
+            Nest nest = new Nest(clazz);
+            nest.setJedisPool(jedisPool);
+            Set<String> modelIdStrings = nest.cat("all").smembers();
+            if (modelIdStrings != null) {
+                results = new HashSet<Object>();
+                for (Object indexed : getAll(clazz, modelIdStrings)) {
+                    if (indexed != null) {
+                        results.add(indexed);
+                    }
                 }
             }
+            return (Set<T>) results;
+        } finally {
+            session.close();
         }
-        return (Set<T>) results;
+    }
+
+    /**
+     * Lazily iterate all the persisted Models of a Class annotated with
+     * {@link SupportAll}. The Class:all set is walked with SSCAN and the
+     * models are hydrated batchSize at a time, so memory stays bounded
+     * regardless of the number of models.
+     * 
+     * @param clazz
+     * @param batchSize
+     *            Number of ids requested per SSCAN and hydrated per page
+     * @return
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static <T> ModelCursor<T> scanAll(Class<?> clazz, int batchSize) {
+        JOhmUtils.Validator.checkSupportAll(clazz);
+        Nest nest = new Nest(clazz);
+        return new ModelCursor<T>(clazz, nest.cat("all").key(), batchSize, jedisPool);
     }
 }
@@ -23,7 +23,9 @@ public enum JOhmExceptionMeta {
     INVALID_ATTRIBUTE_AND_MODEL("Field is both an Attribute and Model which is invalid"),
     INVALID_COLLECTION_SUBTYPE("Field is invalid subtype of its corresponding Collection super-interface"),
     INVALID_COLLECTION_ANNOTATION("Field has invalid Collection annotations"),
-    INVALID_ARRAY_BOUNDS("Field has an actual length greater that annotated array bound");
+    INVALID_ARRAY_BOUNDS("Field has an actual length greater that annotated array bound"),
+    INVALID_SORTED_INDEX("Only numeric and Date Attributes can have a sorted index"),
+    INVALID_LOB("Field annotated Lob must be a RedisLob without other JOhm annotations");
 
     private final String message;
 
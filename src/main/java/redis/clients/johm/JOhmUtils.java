@@ -2,9 +2,12 @@ package redis.clients.johm;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -32,9 +35,10 @@ public final class JOhmUtils {
         String id = null;
         if (model != null) {
             if (checkValidity) {
-                Validator.checkValidModel(model);
+                id = ModelMetadata.of(model.getClass()).getId(model);
+            } else {
+                id = Validator.checkValidId(model);
             }
-            id = Validator.checkValidId(model);
         }
         return id;
     }
@@ -43,118 +47,64 @@ public final class JOhmUtils {
         return getId(model) == null;
     }
 
-    @SuppressWarnings("unchecked")
     static void initCollections(final Object model, final Nest<?> nest) {
         if (model == null || nest == null) {
             return;
         }
-        for (Field field : model.getClass().getDeclaredFields()) {
-            field.setAccessible(true);
-            try {
-                if (field.isAnnotationPresent(CollectionList.class)) {
-                    Validator.checkValidCollection(field);
-                    List<Object> list = (List<Object>) field.get(model);
-                    if (list == null) {
-                        CollectionList annotation = field
-                                .getAnnotation(CollectionList.class);
-                        RedisList<Object> redisList = new RedisList<Object>(
-                                annotation.of(), nest, field, model);
-                        field.set(model, redisList);
-                    }
-                }
-                if (field.isAnnotationPresent(CollectionSet.class)) {
-                    Validator.checkValidCollection(field);
-                    Set<Object> set = (Set<Object>) field.get(model);
-                    if (set == null) {
-                        CollectionSet annotation = field
-                                .getAnnotation(CollectionSet.class);
-                        RedisSet<Object> redisSet = new RedisSet<Object>(annotation.of(),
-                                nest, field, model);
-                        field.set(model, redisSet);
-                    }
-                }
-                if (field.isAnnotationPresent(CollectionSortedSet.class)) {
-                    Validator.checkValidCollection(field);
-                    Set<Object> sortedSet = (Set<Object>) field.get(model);
-                    if (sortedSet == null) {
-                        CollectionSortedSet annotation = field
-                                .getAnnotation(CollectionSortedSet.class);
-                        RedisSortedSet<Object> redisSortedSet = new RedisSortedSet<Object>(
-                                annotation.of(), annotation.by(), nest, field, model);
-                        field.set(model, redisSortedSet);
-                    }
-                }
-                if (field.isAnnotationPresent(CollectionMap.class)) {
-                    Validator.checkValidCollection(field);
-                    Map<Object, Object> map = (Map<Object, Object>) field.get(model);
-                    if (map == null) {
-                        CollectionMap annotation = field
-                                .getAnnotation(CollectionMap.class);
-                        RedisMap<Object, Object> redisMap = new RedisMap<Object, Object>(
-                                annotation.key(), annotation.value(), nest, field, model);
-                        field.set(model, redisMap);
-                    }
-                }
-            } catch (IllegalArgumentException e) {
-                throw new InvalidFieldException();
-            } catch (IllegalAccessException e) {
-                throw new InvalidFieldException();
+        for (FieldMetadata collection : ModelMetadata.of(model.getClass())
+                .getCollections()) {
+            if (collection.get(model) != null) {
+                continue;
+            }
+            Field field = collection.getField();
+            Annotation annotation = collection.getCollection();
+            if (annotation instanceof CollectionList) {
+                collection.set(model, new RedisList<Object>(
+                        ((CollectionList) annotation).of(), nest, field, model));
+            } else if (annotation instanceof CollectionSet) {
+                collection.set(model, new RedisSet<Object>(
+                        ((CollectionSet) annotation).of(), nest, field, model));
+            } else if (annotation instanceof CollectionSortedSet) {
+                CollectionSortedSet sortedSet = (CollectionSortedSet) annotation;
+                collection.set(model, new RedisSortedSet<Object>(sortedSet.of(),
+                        sortedSet.by(), nest, field, model));
+            } else if (annotation instanceof CollectionMap) {
+                CollectionMap map = (CollectionMap) annotation;
+                collection.set(model, new RedisMap<Object, Object>(map.key(),
+                        map.value(), nest, field, model));
+            }
+        }
+        for (FieldMetadata lob : ModelMetadata.of(model.getClass()).getLobs()) {
+            if (lob.get(model) == null) {
+                lob.set(model, new RedisLob(nest, lob.getName(), model));
             }
         }
     }
 
-    static Field getIdField(final Object model) {
-        for (Field field : model.getClass().getDeclaredFields()) {
-            field.setAccessible(true);
-            if (field.isAnnotationPresent(Id.class)) {
-                Validator.checkValidIdType(field);
-                return field;
+    /**
+     * The Model class a LazyReference field refers to, as given by its type
+     * argument.
+     * 
+     * @return null if the type argument is missing or is not a class.
+     */
+    static Class<?> getLazyReferenceType(final Field field) {
+        Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (argument instanceof Class<?>) {
+                return (Class<?>) argument;
             }
         }
-        throw new JOhmException("JOhm does not support a Model without an Id",
-                JOhmExceptionMeta.MISSING_MODEL_ID);
+        return null;
+    }
+
+    static Field getIdField(final Object model) {
+        return ModelMetadata.of(model.getClass()).getIdField();
     }
 
     static void loadId(final Object model, final String id) {
         if (model != null) {
-            boolean idFieldPresent = false;
-            for (Field field : model.getClass().getDeclaredFields()) {
-                field.setAccessible(true);
-                if (field.isAnnotationPresent(Id.class)) {
-                    idFieldPresent = true;
-                    Validator.checkValidIdType(field);
-                    try {
-                        Class<?> type = field.getType();
-                        if (type.isAssignableFrom(Long.class)
-                                || type.isAssignableFrom(long.class)) {
-                            field.set(model, Long.parseLong(id));
-                            break;
-                        }
-                        if (type.isAssignableFrom(String.class)) {
-                            field.set(model, id);
-                            break;
-                        }
-                        if (type.isAssignableFrom(UUID.class)) {
-                            field.set(model, UUID.fromString(id));
-                            break;
-                        }
-                        throw new JOhmException(
-                                "Unknown Id field type. The field annotated "
-                                        + "with @Id should be an a Long, a String or an UUID.",
-                                JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
-                    } catch (IllegalArgumentException e) {
-                        throw new JOhmException(e,
-                                JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
-                    } catch (IllegalAccessException e) {
-                        throw new JOhmException(e,
-                                JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
-                    }
-                }
-            }
-            if (!idFieldPresent) {
-                throw new JOhmException("JOhm does not support a Model without an Id",
-                        JOhmExceptionMeta.MISSING_MODEL_ID);
-            }
+            ModelMetadata.of(model.getClass()).loadId(model, id);
         }
     }
 
@@ -208,11 +158,26 @@ public final class JOhmUtils {
         return false;
     }
 
+    /**
+     * The score of a value in a sorted index: a number itself, or the
+     * milliseconds of a Date.
+     */
+    static double toScore(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        throw new JOhmException(value + " is neither a number nor a Date",
+                JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+    }
+
     static List<Field> gatherAllFields(Class<?> clazz) {
         List<Field> allFields = new ArrayList<Field>();
         Collections.addAll(allFields, clazz.getDeclaredFields());
         while ((clazz = clazz.getSuperclass()) != null) {
-            allFields.addAll(gatherAllFields(clazz));
+            Collections.addAll(allFields, clazz.getDeclaredFields());
         }
 
         return Collections.unmodifiableList(allFields);
@@ -240,6 +205,15 @@ public final class JOhmUtils {
                         + " is not a subclass of Model",
                         JOhmExceptionMeta.MISSING_MODEL_ANNOTATION);
             }
+            if (field.getType().equals(LazyReference.class)) {
+                Class<?> referencedType = getLazyReferenceType(field);
+                if (referencedType == null
+                        || !referencedType.isAnnotationPresent(Model.class)) {
+                    throw new JOhmException(field.getName()
+                            + " must be a LazyReference to a Model class",
+                            JOhmExceptionMeta.MISSING_MODEL_ANNOTATION);
+                }
+            }
         }
 
         static String checkValidId(final Object model) {
@@ -339,7 +313,7 @@ public final class JOhmUtils {
         }
 
         static void checkSupportAll(final Class<?> modelClazz) {
-            if (!modelClazz.isAnnotationPresent(SupportAll.class)) {
+            if (!ModelMetadata.of(modelClazz).isSupportAll()) {
                 throw new JOhmException(
                         "This Model doesn't support getAll(). Please annotate with @SupportAll",
                         JOhmExceptionMeta.MISSING_MODEL_ANNOTATION);
@@ -428,6 +402,12 @@ public final class JOhmUtils {
                     if (!isIndexable(field.getName())) {
                         throw new InvalidFieldException();
                     }
+                    if (field.getAnnotation(Indexed.class).sorted()
+                            && !isScorable(field.getType())) {
+                        throw new JOhmException(field.getName()
+                                + " can not have a sorted index",
+                                JOhmExceptionMeta.INVALID_SORTED_INDEX);
+                    }
                 }
                 if (field.getType().equals(Model.class)) {
                     throw new JOhmException(field.getType().getSimpleName()
@@ -437,10 +417,40 @@ public final class JOhmUtils {
                 checkValidAttribute(field);
             }
             if (isReference) {
+                if (isIndexed && field.getAnnotation(Indexed.class).sorted()) {
+                    throw new JOhmException(field.getName()
+                            + " is a Reference and can not have a sorted index",
+                            JOhmExceptionMeta.INVALID_SORTED_INDEX);
+                }
                 checkValidReference(field);
             }
         }
 
+        static void checkValidLob(final Field field) {
+            if (!field.getType().equals(RedisLob.class)) {
+                throw new JOhmException(field.getName() + " is a Lob and must be a RedisLob",
+                        JOhmExceptionMeta.INVALID_LOB);
+            }
+            if (field.isAnnotationPresent(Attribute.class)
+                    || field.isAnnotationPresent(Reference.class)
+                    || field.isAnnotationPresent(Indexed.class)
+                    || field.isAnnotationPresent(Array.class)) {
+                throw new JOhmException(field.getName()
+                        + " is a Lob and can not have other JOhm annotations",
+                        JOhmExceptionMeta.INVALID_LOB);
+            }
+        }
+
+        /**
+         * Check whether values of the given type are numbers, or Dates
+         * stored as numbers.
+         */
+        static boolean isScorable(final Class<?> type) {
+            return Number.class.isAssignableFrom(type) || type.equals(Date.class)
+                    || (type.isPrimitive() && !type.equals(boolean.class)
+                            && !type.equals(char.class));
+        }
+
         public static boolean checkSupportedPrimitiveClazz(final Class<?> primitiveClazz) {
             return converter.isSupportedPrimitive(primitiveClazz);
         }
@@ -457,6 +467,7 @@ public final class JOhmUtils {
         JOHM_SUPPORTED_ANNOTATIONS.add(CollectionSortedSet.class);
         JOHM_SUPPORTED_ANNOTATIONS.add(Id.class);
         JOHM_SUPPORTED_ANNOTATIONS.add(Indexed.class);
+        JOHM_SUPPORTED_ANNOTATIONS.add(Lob.class);
         JOHM_SUPPORTED_ANNOTATIONS.add(Model.class);
         JOHM_SUPPORTED_ANNOTATIONS.add(Reference.class);
     }
@@ -0,0 +1,21 @@
+package redis.clients.johm;
+
+/**
+ * How the attributes and references of a Model are laid out in Redis.
+ */
+public enum Layout {
+    /**
+     * One Redis hash per model, with one hash field per attribute and
+     * reference.
+     */
+    HASH,
+
+    /**
+     * One Redis string per model, holding all of its attributes and reference
+     * ids packed together. Models are read with GET, and bulk loads fetch many
+     * of them with a single MGET. Every save rewrites the whole value, and
+     * attributes can not be incremented with JOhm.increment. Indexes, arrays
+     * and collections are kept in their own keys, as with {@link #HASH}.
+     */
+    BLOB
+}
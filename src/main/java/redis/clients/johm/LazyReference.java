@@ -0,0 +1,74 @@
+package redis.clients.johm;
+
+/**
+ * LazyReference is the handle held by a lazy Reference field, declared as
+ *
+ * <pre>
+ * &#064;Reference
+ * private LazyReference&lt;Country&gt; country;
+ * </pre>
+ *
+ * Loading the owner model only sets the id of the referenced model, so no
+ * Redis command is issued for it. The referenced model is loaded with
+ * JOhm.get on the first call to get(), and kept for later calls.
+ *
+ * Saving the owner stores the referenced id. With hierarchical persistence,
+ * the referenced model is saved only if it was set or loaded, never when the
+ * handle still holds an id alone.
+ */
+public final class LazyReference<T> {
+    private final Class<?> clazz;
+    private final String id;
+    private T model;
+    private boolean loaded;
+
+    LazyReference(final Class<?> clazz, final String id) {
+        this.clazz = clazz;
+        this.id = id;
+    }
+
+    private LazyReference(final T model) {
+        this.clazz = model.getClass();
+        this.id = null;
+        this.model = model;
+        this.loaded = true;
+    }
+
+    /**
+     * Create a handle for the given model, already loaded.
+     */
+    public static <T> LazyReference<T> to(final T model) {
+        if (model == null) {
+            throw new JOhmException("A LazyReference can not refer to null",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        return new LazyReference<T>(model);
+    }
+
+    /**
+     * The id of the referenced model. This never loads the model.
+     */
+    public String getId() {
+        return loaded ? JOhmUtils.getId(model) : id;
+    }
+
+    /**
+     * The referenced model, loaded on first access.
+     *
+     * @return null if the referenced model is not persisted.
+     */
+    public T get() {
+        if (!loaded) {
+            model = JOhm.<T> get(clazz, id);
+            loaded = true;
+        }
+        return model;
+    }
+
+    /**
+     * Check whether the referenced model was set or has been loaded.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+}
@@ -0,0 +1,24 @@
+package redis.clients.johm;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A large value kept in its own Class:id:field string key rather than in the
+ * model hash, declared as
+ *
+ * <pre>
+ * &#064;Lob
+ * private RedisLob body;
+ * </pre>
+ *
+ * Loading or saving the model never reads or writes the value: it is read and
+ * written through the {@link RedisLob} handle, which JOhm sets on the field
+ * like it does for Collections, whole or in chunks.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Lob {
+}
@@ -0,0 +1,297 @@
+package redis.clients.johm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * LuaScript is a server-side script run with EVALSHA, so that only the SHA1
+ * digest of its source is sent along with its keys and arguments. All
+ * scripts are loaded when the pool is set with JOhm.setPool, and a script
+ * missing from the script cache of Redis, after a restart or a SCRIPT FLUSH,
+ * is loaded again and retried transparently.
+ *
+ * Keys, arguments and replies are byte[], so that binary values go through
+ * unchanged.
+ */
+final class LuaScript {
+    /**
+     * Update an attribute of KEYS[1], keeping its index set and sorted index
+     * up to date. ARGV holds the hash field, "integer" or "float", the index
+     * key prefix or '', the id and the sorted index key or '', followed by
+     * either the delta to HINCRBY by and the bounds of the attribute type or
+     * '', or the value the attribute was read with or '' and its new value.
+     *
+     * @return the new value, nil if KEYS[1] does not exist, or 0 if the
+     *         increment would overflow or the attribute has changed.
+     */
+    static final LuaScript INCREMENT = new LuaScript(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return false end "
+            + "local old = redis.call('HGET', KEYS[1], ARGV[1]) "
+            + "local new "
+            + "if ARGV[2] == 'float' then "
+            + "if (old or '') ~= ARGV[6] then return 0 end "
+            + "new = ARGV[7] redis.call('HSET', KEYS[1], ARGV[1], new) "
+            + "else "
+            + "if ARGV[7] ~= '' then "
+            + "local sum = tonumber(old or '0') + tonumber(ARGV[6]) "
+            + "if sum < tonumber(ARGV[7]) or sum > tonumber(ARGV[8]) then return 0 end end "
+            + "redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[6]) "
+            + "new = redis.call('HGET', KEYS[1], ARGV[1]) end "
+            + "if ARGV[3] ~= '' then "
+            + "if old then redis.call('SREM', ARGV[3] .. old, ARGV[4]) end "
+            + "redis.call('SADD', ARGV[3] .. new, ARGV[4]) end "
+            + "if ARGV[5] ~= '' then redis.call('ZADD', ARGV[5], new, ARGV[4]) end "
+            + "return new");
+
+    /**
+     * The code of the enum constant ARGV[1] in the code table KEYS[1],
+     * assigning it the next free code on first use.
+     */
+    static final LuaScript ENUM_CODE = new LuaScript(
+            "local code = redis.call('HGET', KEYS[1], ARGV[1]) "
+            + "if not code then code = tostring(redis.call('HLEN', KEYS[1])) "
+            + "redis.call('HSET', KEYS[1], ARGV[1], code) end "
+            + "return code");
+
+    /**
+     * SSCAN the set KEYS[1] from cursor ARGV[1], about ARGV[2] members at a
+     * time, returning the next cursor followed by the members.
+     */
+    static final LuaScript SSCAN = new LuaScript(
+            "local page = redis.call('SSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2]) "
+            + "local reply = {page[1]} "
+            + "for i, member in ipairs(page[2]) do reply[i + 1] = member end "
+            + "return reply");
+
+    /**
+     * Apply the write set of a model, KEYS[1], provided its stored state is
+     * still the one the write set was computed from, for the models whose
+     * stored values only the client can decode; see ModelWriter for the
+     * layout of KEYS and ARGV.
+     *
+     * @return 1 once applied, 0 if the stored state changed and nothing was
+     *         written.
+     */
+    static final LuaScript WRITE = new LuaScript(
+            "local i = 0 "
+            + "local function nextarg() i = i + 1 return ARGV[i] end "
+            + "local guard = nextarg() "
+            + "if guard == 'absent' then "
+            + "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "elseif guard == 'hash' then "
+            + "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end "
+            + "for f = 1, tonumber(nextarg()) do "
+            + "local stored = redis.call('HGET', KEYS[1], nextarg()) "
+            + "local present = nextarg() local value = nextarg() "
+            + "if present == '1' then if stored ~= value then return 0 end "
+            + "elseif stored then return 0 end end "
+            + "elseif guard == 'blob' then "
+            + "if redis.call('GET', KEYS[1]) ~= nextarg() then return 0 end end "
+            + "for l = 1, tonumber(nextarg()) do "
+            + "local list = redis.call('LRANGE', KEYS[tonumber(nextarg())], 0, -1) "
+            + "local length = tonumber(nextarg()) "
+            + "if #list ~= length then return 0 end "
+            + "for e = 1, length do if list[e] ~= nextarg() then return 0 end end end "
+            + "for c = 1, tonumber(nextarg()) do "
+            + "local words = tonumber(nextarg()) local k = tonumber(nextarg()) "
+            + "local command = {nextarg()} "
+            + "if k > 0 then command[2] = KEYS[k] end "
+            + "for a = 2, words do command[#command + 1] = nextarg() end "
+            + "redis.call(unpack(command)) end "
+            + "return 1");
+
+    /**
+     * The helpers of SAVE and DELETE: nextarg() reads the next of ARGV, key()
+     * reads a position in KEYS, 0 for none, call() runs a command on
+     * arguments split by 1000, as unpack can only pass that many, and
+     * indexed() tells whether a stored value has an index entry, or returns
+     * nil if the value is compressed and its entry cannot be told here.
+     */
+    private static final String HELPERS = "local i = 0 "
+            + "local function nextarg() i = i + 1 return ARGV[i] end "
+            + "local function key() local k = tonumber(nextarg()) "
+            + "if k > 0 then return KEYS[k] end end "
+            + "local function call(command, key, args) local reply = {} "
+            + "for first = 1, #args, 1000 do "
+            + "local part = redis.call(command, key, "
+            + "unpack(args, first, math.min(first + 999, #args))) "
+            + "if type(part) == 'table' then "
+            + "for p = 1, #part do reply[#reply + 1] = part[p] end end end "
+            + "return reply end "
+            + "local function indexed(value) "
+            + "if not value or string.find(value, '^[%z\\1- ]*$') then return false end "
+            + "if string.byte(value) == 0 then return nil end "
+            + "return true end ";
+
+    /**
+     * Save the given fields and arrays of a model, KEYS[1], comparing them
+     * with the stored ones here: only the hash fields and arrays that differ
+     * are written, and the index entries of their stored values are removed.
+     * See ModelWriter for the layout of KEYS and ARGV.
+     *
+     * @return 1 once saved, 0 if updating a model that is not stored, or -1
+     *         if a stored indexed value is compressed, in which case nothing
+     *         is written.
+     */
+    static final LuaScript SAVE = new LuaScript(HELPERS
+            + "local updating = nextarg() == 'update' "
+            + "local exists = redis.call('EXISTS', KEYS[1]) == 1 "
+            + "if updating and not exists then return 0 end "
+            + "local id = nextarg() local all = key() local channel = nextarg() "
+            + "local names = {} local fields = {} "
+            + "for f = 1, tonumber(nextarg()) do names[f] = nextarg() "
+            + "fields[f] = {present = nextarg() == '1', value = nextarg(), prefix = nextarg(), "
+            + "index = key(), sorted = key(), score = nextarg()} end "
+            + "local stored = {} "
+            + "if exists then stored = call('HMGET', KEYS[1], names) end "
+            + "local hmset = {} local hdel = {} local writes = {} local changed = false "
+            + "for f, field in ipairs(fields) do local old = stored[f] "
+            + "if field.present and old ~= field.value or not field.present and old then "
+            + "changed = true "
+            + "if field.present then hmset[#hmset + 1] = names[f] hmset[#hmset + 1] = field.value "
+            + "else hdel[#hdel + 1] = names[f] end "
+            + "if field.prefix ~= '' then local kept = indexed(old) "
+            + "if kept == nil then return -1 end "
+            + "if kept then writes[#writes + 1] = {'SREM', field.prefix .. old, id} end "
+            + "if field.index then writes[#writes + 1] = {'SADD', field.index, id} end end "
+            + "if field.sorted and field.present then "
+            + "writes[#writes + 1] = {'ZADD', field.sorted, field.score, id} "
+            + "elseif field.sorted then writes[#writes + 1] = {'ZREM', field.sorted, id} end "
+            + "end end "
+            + "for w, write in ipairs(writes) do redis.call(unpack(write)) end "
+            + "if #hmset > 0 then call('HMSET', KEYS[1], hmset) end "
+            + "if #hdel > 0 then call('HDEL', KEYS[1], hdel) end "
+            + "for a = 1, tonumber(nextarg()) do "
+            + "local list = key() local prefix = nextarg() local elements = {} "
+            + "for e = 1, tonumber(nextarg()) do elements[e] = nextarg() end "
+            + "local old = redis.call('LRANGE', list, 0, -1) local same = #old == #elements "
+            + "for e = 1, #elements do if old[e] ~= elements[e] then same = false end end "
+            + "if not same then changed = true "
+            + "if prefix ~= '' then local before = {} local after = {} "
+            + "for o, element in ipairs(old) do before[element] = true end "
+            + "for e, element in ipairs(elements) do after[element] = true end "
+            + "for element in pairs(before) do "
+            + "if not after[element] then redis.call('SREM', prefix .. element, id) end end "
+            + "for element in pairs(after) do "
+            + "if not before[element] then redis.call('SADD', prefix .. element, id) end end end "
+            + "redis.call('DEL', list) "
+            + "if #elements > 0 then call('RPUSH', list, elements) end end end "
+            + "if all and not exists then redis.call('SADD', all, id) changed = true end "
+            + "if changed and channel ~= '' then redis.call('PUBLISH', channel, KEYS[1]) end "
+            + "return 1");
+
+    /**
+     * Delete a model, KEYS[1], along with the index entries of its stored
+     * values and array elements, which are read here. See ModelWriter for
+     * the layout of KEYS and ARGV.
+     *
+     * @return the stored values of the fields given, nil if the model is not
+     *         stored, or -1 if a stored indexed value is compressed, in which
+     *         case nothing is deleted.
+     */
+    static final LuaScript DELETE = new LuaScript(HELPERS
+            + "if redis.call('EXISTS', KEYS[1]) == 0 then return false end "
+            + "local id = nextarg() local all = key() local channel = nextarg() "
+            + "local names = {} local fields = {} "
+            + "for f = 1, tonumber(nextarg()) do names[f] = nextarg() "
+            + "fields[f] = {prefix = nextarg(), sorted = key()} end "
+            + "local stored = call('HMGET', KEYS[1], names) local writes = {} "
+            + "for f, field in ipairs(fields) do "
+            + "if field.prefix ~= '' then local kept = indexed(stored[f]) "
+            + "if kept == nil then return -1 end "
+            + "if kept then writes[#writes + 1] = {'SREM', field.prefix .. stored[f], id} end end "
+            + "if field.sorted then writes[#writes + 1] = {'ZREM', field.sorted, id} end end "
+            + "for w, write in ipairs(writes) do redis.call(unpack(write)) end "
+            + "for a = 1, tonumber(nextarg()) do local list = key() local prefix = nextarg() "
+            + "for e, element in ipairs(redis.call('LRANGE', list, 0, -1)) do "
+            + "redis.call('SREM', prefix .. element, id) end end "
+            + "for k = 1, tonumber(nextarg()) do redis.call('DEL', key()) end "
+            + "if all then redis.call('SREM', all, id) end "
+            + "if channel ~= '' then redis.call('PUBLISH', channel, KEYS[1]) end "
+            + "return stored");
+
+    private static final LuaScript[] ALL = { INCREMENT, ENUM_CODE, SSCAN, WRITE, SAVE, DELETE };
+
+    private final String source;
+    private final byte[] sha;
+
+    private LuaScript(final String source) {
+        this.source = source;
+        this.sha = SafeEncoder.encode(sha1(source));
+    }
+
+    /**
+     * Load every script into the script cache of Redis. A failure is
+     * ignored, as scripts are loaded again when first run anyway.
+     */
+    static void loadAll(final JedisPool jedisPool) {
+        Jedis jedis = null;
+        try {
+            jedis = jedisPool.getResource();
+            for (LuaScript script : ALL) {
+                jedis.scriptLoad(script.source);
+            }
+            jedisPool.returnResource(jedis);
+        } catch (JedisException e) {
+            if (jedis != null) {
+                jedisPool.returnBrokenResource(jedis);
+            }
+        }
+    }
+
+    /**
+     * Run this script with EVALSHA, loading it first if Redis replies
+     * NOSCRIPT.
+     */
+    Object eval(final Jedis jedis, final List<byte[]> keys, final List<byte[]> args) {
+        List<byte[]> params = new ArrayList<byte[]>(keys.size() + args.size());
+        params.addAll(keys);
+        params.addAll(args);
+        byte[][] paramsArray = params.toArray(new byte[params.size()][]);
+        try {
+            return evalsha(jedis, keys.size(), paramsArray);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            jedis.scriptLoad(source);
+            return evalsha(jedis, keys.size(), paramsArray);
+        }
+    }
+
+    // Jedis only offers a binary-safe EVAL, so EVALSHA goes through its client
+    private Object evalsha(final Jedis jedis, final int keyCount, final byte[][] params) {
+        Client client = jedis.getClient();
+        client.setTimeoutInfinite();
+        try {
+            client.evalsha(sha, SafeEncoder.encode(String.valueOf(keyCount)), params);
+            return client.getOne();
+        } finally {
+            client.rollbackTimeout();
+        }
+    }
+
+    private static String sha1(final String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    SafeEncoder.encode(source));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+    }
+}
@@ -14,5 +14,13 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Model {
+    /**
+     * How attributes are encoded in the Model hash.
+     */
+    Encoding encoding() default Encoding.STRING;
 
+    /**
+     * How attributes and references are laid out in Redis.
+     */
+    Layout layout() default Layout.HASH;
 }
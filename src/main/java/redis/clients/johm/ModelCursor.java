@@ -0,0 +1,88 @@
+package redis.clients.johm;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * ModelCursor lazily walks a set of model ids, such as Class:all or an index
+ * set, with SSCAN and hydrates the models one page at a time. At most one page
+ * of models is held in memory, whatever the size of the set.
+ *
+ * As with SSCAN itself, a model added or removed while iterating may or may
+ * not be returned, and a model may be returned more than once if the set is
+ * resized during the iteration. Each call to iterator() starts a new scan.
+ * SSCAN requires Redis 2.8 or later.
+ */
+public final class ModelCursor<T> implements Iterable<T> {
+    private final Class<?> clazz;
+    private final String setKey;
+    private final int batchSize;
+    private final JedisPool jedisPool;
+
+    ModelCursor(final Class<?> clazz, final String setKey, final int batchSize,
+            final JedisPool jedisPool) {
+        if (batchSize < 1) {
+            throw new JOhmException("Batch size must be a positive number",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        this.clazz = clazz;
+        this.setKey = setKey;
+        this.batchSize = batchSize;
+        this.jedisPool = jedisPool;
+    }
+
+    public Iterator<T> iterator() {
+        return new ScanIterator();
+    }
+
+    private final class ScanIterator implements Iterator<T> {
+        private final LinkedList<T> page = new LinkedList<T>();
+        private String cursor = "0";
+        private boolean finished;
+
+        public boolean hasNext() {
+            while (page.isEmpty() && !finished) {
+                fetchPage();
+            }
+            return !page.isEmpty();
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.removeFirst();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void fetchPage() {
+            Session session = Session.open(jedisPool);
+            try {
+                Nest<?> nest = new Nest<Object>(setKey);
+                nest.setJedisPool(jedisPool);
+                List<String> reply = nest.sscan(cursor, batchSize);
+                cursor = reply.get(0);
+                finished = "0".equals(cursor);
+                List<String> ids = reply.subList(1, reply.size());
+                if (!ids.isEmpty()) {
+                    for (Object model : new ModelLoader(jedisPool, batchSize)
+                            .loadAll(clazz, ids)) {
+                        if (model != null) {
+                            page.add((T) model);
+                        }
+                    }
+                }
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
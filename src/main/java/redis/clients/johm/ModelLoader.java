@@ -0,0 +1,468 @@
+package redis.clients.johm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.TransactionBlock;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.johm.JOhmUtils.JOhmCollectionDataType;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * ModelLoader hydrates models from Redis breadth-first: every model hash and
+ * array list needed at one level of the object graph is fetched in a single
+ * pipelined round trip, and the models they refer to are fetched together in
+ * the next one. The blobs of BLOB Models are fetched with a single MGET. A
+ * model is fetched at most once per loader, which also keeps reference cycles
+ * from recursing.
+ *
+ * Models already held by the current thread's Session are taken from it
+ * instead of Redis, and every model loaded is registered with it. The stored
+ * state of Cached models is taken from, and kept in, their near cache.
+ *
+ * The models asked for may be loaded with a projection, a subset of their
+ * fields: only those fields are read, with HMGET, and set. Such partial
+ * models are always read from Redis, and are neither registered with the
+ * Session nor cached, so that they can not be mistaken for whole ones. The
+ * models they refer to are loaded whole.
+ *
+ * A loader is meant for a single JOhm operation and is not thread-safe.
+ */
+final class ModelLoader {
+    private final JedisPool jedisPool;
+    private final int batchSize;
+    private final Session session;
+    private final boolean useCaches;
+    private final Map<String, Fetch> fetches = new HashMap<String, Fetch>();
+    private List<Fetch> queue = new ArrayList<Fetch>();
+
+    ModelLoader(final JedisPool jedisPool, final int batchSize) {
+        this(jedisPool, batchSize, true);
+    }
+
+    /**
+     * @param useCaches
+     *            false to read the stored state of every model from Redis,
+     *            bypassing and leaving alone the models held by the Session
+     *            and the near caches.
+     */
+    ModelLoader(final JedisPool jedisPool, final int batchSize, final boolean useCaches) {
+        this.jedisPool = jedisPool;
+        this.batchSize = batchSize;
+        this.useCaches = useCaches;
+        this.session = useCaches ? Session.current(jedisPool) : null;
+    }
+
+    /**
+     * Load a single model.
+     *
+     * @return null if not found.
+     */
+    Object load(final Class<?> clazz, final String id, final String... fieldNames) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        Fetch fetch = request(metadata, id, Projection.of(metadata, fieldNames));
+        flush();
+        return fetch.instance;
+    }
+
+    /**
+     * Load several models of the same class, preserving the order of the
+     * given ids. Hashes are requested at most batchSize to a pipeline.
+     *
+     * @param fieldNames
+     *            the fields to load, or none to load whole models.
+     * @return a list holding null for every id that was not found.
+     */
+    List<Object> loadAll(final Class<?> clazz, final Collection<String> ids,
+            final String... fieldNames) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        Projection projection = Projection.of(metadata, fieldNames);
+        List<Fetch> requested = new ArrayList<Fetch>(ids.size());
+        for (String id : ids) {
+            requested.add(request(metadata, id, projection));
+        }
+        flush();
+        List<Object> results = new ArrayList<Object>(requested.size());
+        for (Fetch fetch : requested) {
+            results.add(fetch.instance);
+        }
+        return results;
+    }
+
+    private Fetch request(final ModelMetadata metadata, final String id,
+            final Projection projection) {
+        String key = metadata.keyOf(id);
+        if (projection != null) {
+            Fetch fetch = new Fetch(metadata, id, key, projection);
+            queue.add(fetch);
+            return fetch;
+        }
+        Fetch fetch = fetches.get(key);
+        if (fetch == null) {
+            fetch = new Fetch(metadata, id, key, null);
+            fetches.put(key, fetch);
+            Object instance = session == null ? null : session.lookup(key);
+            if (instance != null) {
+                fetch.complete(instance);
+            } else {
+                queue.add(fetch);
+            }
+        }
+        return fetch;
+    }
+
+    private void flush() {
+        while (!queue.isEmpty()) {
+            List<Fetch> round = queue;
+            queue = new ArrayList<Fetch>();
+            for (int from = 0; from < round.size(); from += batchSize) {
+                List<Fetch> batch = round.subList(from,
+                        Math.min(from + batchSize, round.size()));
+                fetch(batch);
+                for (Fetch fetch : batch) {
+                    materialize(fetch);
+                }
+            }
+        }
+    }
+
+    private void fetch(final List<Fetch> batch) {
+        final List<Fetch> reads = new ArrayList<Fetch>(batch.size());
+        for (Fetch fetch : batch) {
+            NearCache cache = useCaches && fetch.projection == null ? fetch.metadata
+                    .getNearCache() : null;
+            NearCache.Entry entry = null;
+            if (cache != null) {
+                NearCache.listen(jedisPool);
+                entry = cache.get(fetch.key);
+                fetch.generation = cache.generation();
+            }
+            if (entry != null) {
+                fetch.hash = entry.hash;
+                fetch.arrays = entry.arrays;
+            } else {
+                reads.add(fetch);
+            }
+        }
+        if (reads.isEmpty()) {
+            return;
+        }
+
+        final Map<Fetch, Response<?>> hashes = new HashMap<Fetch, Response<?>>();
+        // HMGET replies alike for a missing model and one without these fields
+        final Map<Fetch, Response<Boolean>> exists = new HashMap<Fetch, Response<Boolean>>();
+        final Map<Fetch, Map<FieldMetadata, Response<List<String>>>> arrays = new HashMap<Fetch, Map<FieldMetadata, Response<List<String>>>>();
+        final List<Fetch> blobReads = new ArrayList<Fetch>();
+        final List<Response<List<byte[]>>> blobs = new ArrayList<Response<List<byte[]>>>(1);
+        boolean binary = false;
+        for (Fetch fetch : reads) {
+            binary |= fetch.metadata.isBinary();
+            if (fetch.metadata.isBlob()) {
+                blobReads.add(fetch);
+            }
+            arrays.put(fetch, new HashMap<FieldMetadata, Response<List<String>>>());
+        }
+        Nest<?> nest = new Nest<Object>();
+        nest.setJedisPool(jedisPool);
+        if (binary || !blobReads.isEmpty()) {
+            // pipelines only decode hash values and MGET replies to strings
+            nest.multi(new TransactionBlock() {
+                public void execute() throws JedisException {
+                    if (!blobReads.isEmpty()) {
+                        byte[][] keys = new byte[blobReads.size()][];
+                        for (int iter = 0; iter < keys.length; iter++) {
+                            keys[iter] = SafeEncoder.encode(blobReads.get(iter).key);
+                        }
+                        blobs.add(mget(keys));
+                    }
+                    for (Fetch fetch : reads) {
+                        if (fetch.metadata.isBlob()) {
+                            // read with the MGET above
+                        } else if (fetch.projection != null) {
+                            exists.put(fetch, exists(fetch.key));
+                            if (!fetch.hashFields().isEmpty()) {
+                                hashes.put(fetch, hmget(SafeEncoder.encode(fetch.key),
+                                        storageKeys(fetch.hashFields())));
+                            }
+                        } else if (fetch.metadata.isBinary()
+                                && !fetch.metadata.getHashFields().isEmpty()) {
+                            hashes.put(fetch, hmget(SafeEncoder.encode(fetch.key),
+                                    storageKeys(fetch.hashFields())));
+                        } else {
+                            hashes.put(fetch, hgetAll(fetch.key));
+                        }
+                        for (FieldMetadata array : fetch.arrayFields()) {
+                            arrays.get(fetch).put(array,
+                                    lrange(fetch.key + ":" + array.getName(), 0, -1));
+                        }
+                    }
+                }
+            });
+        } else {
+            nest.pipelined(new PipelineBlock() {
+                public void execute() {
+                    for (Fetch fetch : reads) {
+                        if (fetch.projection == null) {
+                            hashes.put(fetch, hgetAll(fetch.key));
+                        } else {
+                            exists.put(fetch, exists(fetch.key));
+                            if (!fetch.hashFields().isEmpty()) {
+                                hashes.put(fetch, hmget(fetch.key,
+                                        storageKeyStrings(fetch.hashFields())));
+                            }
+                        }
+                        for (FieldMetadata array : fetch.arrayFields()) {
+                            arrays.get(fetch).put(array,
+                                    lrange(fetch.key + ":" + array.getName(), 0, -1));
+                        }
+                    }
+                }
+            });
+        }
+        for (int iter = 0; iter < blobReads.size(); iter++) {
+            byte[] blob = blobs.get(0).get().get(iter);
+            Fetch fetch = blobReads.get(iter);
+            fetch.hash = blob == null ? null : BlobLayout.unpack(blob, fetch.metadata
+                    .isBinary());
+        }
+        for (Fetch fetch : reads) {
+            if (exists.containsKey(fetch) && !exists.get(fetch).get()) {
+                fetch.hash = null;
+            } else if (!fetch.metadata.isBlob()) {
+                fetch.hash = hashes.containsKey(fetch) ? toHash(fetch, hashes.get(fetch)
+                        .get()) : new HashMap<String, String>();
+            }
+            fetch.arrays = new HashMap<FieldMetadata, List<String>>();
+            for (Map.Entry<FieldMetadata, Response<List<String>>> list : arrays.get(fetch)
+                    .entrySet()) {
+                fetch.arrays.put(list.getKey(), list.getValue().get());
+            }
+            NearCache cache = useCaches && fetch.projection == null ? fetch.metadata
+                    .getNearCache() : null;
+            if (cache != null && fetch.hash != null && !fetch.hash.isEmpty()) {
+                cache.put(fetch.key, fetch.hash, fetch.arrays, fetch.generation);
+            }
+        }
+    }
+
+    private static byte[][] storageKeys(final List<FieldMetadata> hashFields) {
+        byte[][] storageKeys = new byte[hashFields.size()][];
+        for (int iter = 0; iter < storageKeys.length; iter++) {
+            storageKeys[iter] = SafeEncoder.encode(hashFields.get(iter).getStorageKey());
+        }
+        return storageKeys;
+    }
+
+    private static String[] storageKeyStrings(final List<FieldMetadata> hashFields) {
+        String[] storageKeys = new String[hashFields.size()];
+        for (int iter = 0; iter < storageKeys.length; iter++) {
+            storageKeys[iter] = hashFields.get(iter).getStorageKey();
+        }
+        return storageKeys;
+    }
+
+    /**
+     * The model hash from an HGETALL reply, or from the HMGET reply of a
+     * projection or of a binary Model, whose values are kept as one char per
+     * byte.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> toHash(final Fetch fetch, final Object reply) {
+        if (reply instanceof Map) {
+            return (Map<String, String>) reply;
+        }
+        List<?> values = (List<?>) reply;
+        List<FieldMetadata> hashFields = fetch.hashFields();
+        Map<String, String> hash = new HashMap<String, String>();
+        for (int iter = 0; iter < hashFields.size(); iter++) {
+            Object value = values.get(iter);
+            if (value instanceof byte[]) {
+                hash.put(hashFields.get(iter).getStorageKey(), BinaryEncoding
+                        .string((byte[]) value));
+            } else if (value != null) {
+                hash.put(hashFields.get(iter).getStorageKey(), (String) value);
+            }
+        }
+        return hash;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void materialize(final Fetch fetch) {
+        Map<String, String> hashedObject = fetch.hash;
+        if (hashedObject == null || (hashedObject.isEmpty() && fetch.projection == null)) {
+            fetch.complete(null);
+            return;
+        }
+        ModelMetadata metadata = fetch.metadata;
+        Object instance = metadata.newInstance();
+        metadata.loadId(instance, fetch.id);
+        Nest nest = new Nest(metadata.getModelClazz());
+        nest.setJedisPool(jedisPool);
+        JOhmUtils.initCollections(instance, nest);
+
+        for (FieldMetadata field : fetch.hashFields()) {
+            if (field.isAttribute()) {
+                field.decode(instance, hashedObject.get(field.getStorageKey()));
+            }
+        }
+        for (FieldMetadata reference : fetch.hashFields()) {
+            if (!reference.isReference()) {
+                continue;
+            }
+            String referenceId = hashedObject.get(reference.getStorageKey());
+            if (referenceId != null && reference.isLazy()) {
+                reference.set(instance, new LazyReference<Object>(reference.getType(),
+                        reference.decodeReference(referenceId)));
+            } else if (referenceId != null) {
+                request(ModelMetadata.of(reference.getType()),
+                        reference.decodeReference(referenceId), null).bind(
+                        new Binding(instance, reference, null, 0));
+            }
+        }
+        for (FieldMetadata array : fetch.arrayFields()) {
+            Class<?> elementClazz = array.getArray().of();
+            Object[] elements = (Object[]) java.lang.reflect.Array.newInstance(
+                    elementClazz, array.getArray().length());
+            array.set(instance, elements);
+            List<String> keys = fetch.arrays.get(array);
+            JOhmCollectionDataType elementType = array.getArrayElementType();
+            int length = Math.min(elements.length, keys.size());
+            for (int iter = 0; iter < length; iter++) {
+                String key = keys.get(iter);
+                if (JOhmUtils.isNullOrEmpty(key)) {
+                    continue;
+                }
+                if (elementType == JOhmCollectionDataType.PRIMITIVE) {
+                    elements[iter] = JOhmUtils.converter.getAsObject(elementClazz, key);
+                } else if (elementType == JOhmCollectionDataType.MODEL) {
+                    request(ModelMetadata.of(elementClazz), key, null).bind(
+                            new Binding(null, null, elements, iter));
+                }
+            }
+        }
+        if (session != null && fetch.projection == null) {
+            session.register(fetch.key, instance);
+        }
+        fetch.complete(instance);
+    }
+
+    /**
+     * The fields of a Model to load: hash fields read with HMGET, and
+     * arrays.
+     */
+    private static final class Projection {
+        private final List<FieldMetadata> hashFields = new ArrayList<FieldMetadata>();
+        private final List<FieldMetadata> arrays = new ArrayList<FieldMetadata>();
+
+        /**
+         * @return null if no field is named, to load whole models.
+         */
+        static Projection of(final ModelMetadata metadata, final String... fieldNames) {
+            if (fieldNames == null || fieldNames.length == 0) {
+                return null;
+            }
+            Projection projection = new Projection();
+            for (String fieldName : fieldNames) {
+                FieldMetadata field = metadata.getField(fieldName);
+                if (field == null
+                        || !(field.isAttribute() || field.isReference() || field.isArray())) {
+                    throw new InvalidFieldException();
+                }
+                List<FieldMetadata> fields = field.isArray() ? projection.arrays
+                        : projection.hashFields;
+                if (!fields.contains(field)) {
+                    fields.add(field);
+                }
+            }
+            return projection;
+        }
+    }
+
+    /**
+     * A model hash, and the arrays of that model, requested from Redis or
+     * from the near cache.
+     */
+    private static final class Fetch {
+        private final ModelMetadata metadata;
+        private final String id;
+        private final String key;
+        private final Projection projection;
+        private Map<String, String> hash;
+        private Map<FieldMetadata, List<String>> arrays;
+        private long generation;
+        private boolean done;
+        private Object instance;
+        private List<Binding> bindings;
+
+        Fetch(final ModelMetadata metadata, final String id, final String key,
+                final Projection projection) {
+            this.metadata = metadata;
+            this.id = id;
+            this.key = key;
+            this.projection = projection;
+        }
+
+        List<FieldMetadata> hashFields() {
+            return projection == null ? metadata.getHashFields() : projection.hashFields;
+        }
+
+        List<FieldMetadata> arrayFields() {
+            return projection == null ? metadata.getArrays() : projection.arrays;
+        }
+
+        void bind(final Binding binding) {
+            if (done) {
+                binding.apply(instance);
+            } else {
+                if (bindings == null) {
+                    bindings = new ArrayList<Binding>();
+                }
+                bindings.add(binding);
+            }
+        }
+
+        void complete(final Object loaded) {
+            instance = loaded;
+            done = true;
+            if (bindings != null) {
+                for (Binding binding : bindings) {
+                    binding.apply(loaded);
+                }
+                bindings = null;
+            }
+        }
+    }
+
+    /**
+     * The place a loaded model must be written to: either a reference field
+     * of its owner, or a slot of an array.
+     */
+    private static final class Binding {
+        private final Object owner;
+        private final FieldMetadata field;
+        private final Object[] array;
+        private final int index;
+
+        Binding(final Object owner, final FieldMetadata field, final Object[] array,
+                final int index) {
+            this.owner = owner;
+            this.field = field;
+            this.array = array;
+            this.index = index;
+        }
+
+        void apply(final Object loaded) {
+            if (array != null) {
+                array[index] = loaded;
+            } else if (loaded != null) {
+                field.set(owner, loaded);
+            }
+        }
+    }
+}
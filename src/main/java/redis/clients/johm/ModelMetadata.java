@@ -0,0 +1,330 @@
+package redis.clients.johm;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ModelMetadata is the reflective description of a Model class: its id field
+ * and the descriptors of all its JOhm-annotated fields, gathered up the
+ * superclass chain. It is computed and validated once per class and then
+ * shared by every JOhm operation, so that the hot path does not scan fields or
+ * look up annotations again.
+ */
+public final class ModelMetadata {
+    private static final ConcurrentMap<Class<?>, ModelMetadata> registry = new ConcurrentHashMap<Class<?>, ModelMetadata>();
+
+    private final Class<?> modelClazz;
+    private final String name;
+    private final boolean supportAll;
+    private final boolean binary;
+    private final boolean blob;
+    private final NearCache nearCache;
+    private final Field idField;
+    private final Class<?> idType;
+    private final List<FieldMetadata> attributes;
+    private final List<FieldMetadata> references;
+    private final List<FieldMetadata> hashFields;
+    private final List<FieldMetadata> indexed;
+    private final List<FieldMetadata> arrays;
+    private final List<FieldMetadata> collections;
+    private final List<FieldMetadata> lobs;
+    private final boolean indexedAsStored;
+    private final Map<String, FieldMetadata> fieldsByName = new HashMap<String, FieldMetadata>();
+
+    /**
+     * Get the metadata of the given Model class, computing it on first use.
+     * This is safe to call concurrently; an invalid Model class is never
+     * cached and fails on every call.
+     */
+    public static ModelMetadata of(final Class<?> modelClazz) {
+        ModelMetadata metadata = registry.get(modelClazz);
+        if (metadata == null) {
+            metadata = new ModelMetadata(modelClazz);
+            ModelMetadata existing = registry.putIfAbsent(modelClazz, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+        return metadata;
+    }
+
+    private ModelMetadata(final Class<?> modelClazz) {
+        JOhmUtils.Validator.checkValidModelClazz(modelClazz);
+        this.modelClazz = modelClazz;
+        this.name = modelClazz.getSimpleName();
+        this.supportAll = modelClazz.isAnnotationPresent(SupportAll.class);
+        Model model = modelClazz.getAnnotation(Model.class);
+        this.binary = model.encoding() == Encoding.BINARY;
+        this.blob = model.layout() == Layout.BLOB;
+        Cached cached = modelClazz.getAnnotation(Cached.class);
+        this.nearCache = cached == null ? null : NearCache.of(name, cached);
+
+        Field id = null;
+        for (Field field : modelClazz.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Id.class)) {
+                JOhmUtils.Validator.checkValidIdType(field);
+                field.setAccessible(true);
+                id = field;
+                break;
+            }
+        }
+        if (id == null) {
+            throw new JOhmException("JOhm does not support a Model without an Id",
+                    JOhmExceptionMeta.MISSING_MODEL_ID);
+        }
+        this.idField = id;
+        this.idType = id.getType();
+
+        List<FieldMetadata> attributes = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> references = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> indexed = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> arrays = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> collections = new ArrayList<FieldMetadata>();
+        List<FieldMetadata> lobs = new ArrayList<FieldMetadata>();
+        for (Field field : JOhmUtils.gatherAllFields(modelClazz)) {
+            if (field.isAnnotationPresent(Id.class)) {
+                JOhmUtils.Validator.checkValidIdType(field);
+                continue;
+            }
+            if (JOhmUtils.detectJOhmCollection(field)) {
+                JOhmUtils.Validator.checkValidCollection(field);
+            } else if (field.isAnnotationPresent(Lob.class)) {
+                JOhmUtils.Validator.checkValidLob(field);
+            } else {
+                JOhmUtils.Validator.checkAttributeReferenceIndexRules(field);
+            }
+            FieldMetadata fieldMetadata = new FieldMetadata(field, binary);
+            if (!fieldMetadata.isAttribute() && !fieldMetadata.isReference()
+                    && !fieldMetadata.isIndexed() && !fieldMetadata.isArray()
+                    && !fieldMetadata.isCollection() && !fieldMetadata.isLob()) {
+                continue;
+            }
+            if (fieldMetadata.isCollection()) {
+                collections.add(fieldMetadata);
+            } else if (fieldMetadata.isLob()) {
+                lobs.add(fieldMetadata);
+            } else if (fieldMetadata.isArray()) {
+                arrays.add(fieldMetadata);
+            }
+            if (fieldMetadata.isAttribute()) {
+                attributes.add(fieldMetadata);
+            }
+            if (fieldMetadata.isReference()) {
+                references.add(fieldMetadata);
+            }
+            if (fieldMetadata.isIndexed()
+                    && (fieldMetadata.isAttribute() || fieldMetadata.isReference())) {
+                indexed.add(fieldMetadata);
+            }
+            if (!fieldsByName.containsKey(fieldMetadata.getName())) {
+                fieldsByName.put(fieldMetadata.getName(), fieldMetadata);
+            }
+        }
+        this.attributes = Collections.unmodifiableList(attributes);
+        this.references = Collections.unmodifiableList(references);
+        List<FieldMetadata> hashFields = new ArrayList<FieldMetadata>(attributes);
+        hashFields.addAll(references);
+        this.hashFields = Collections.unmodifiableList(hashFields);
+        this.indexed = Collections.unmodifiableList(indexed);
+        this.arrays = Collections.unmodifiableList(arrays);
+        this.collections = Collections.unmodifiableList(collections);
+        this.lobs = Collections.unmodifiableList(lobs);
+        boolean indexedAsStored = true;
+        for (FieldMetadata field : indexed) {
+            if (field.isAttribute() && Date.class.isAssignableFrom(field.getType())) {
+                indexedAsStored = false;
+            }
+        }
+        this.indexedAsStored = indexedAsStored;
+    }
+
+    public Class<?> getModelClazz() {
+        return modelClazz;
+    }
+
+    /**
+     * The simple class name, used as the root of all this Model's keys.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isSupportAll() {
+        return supportAll;
+    }
+
+    /**
+     * Check whether this Model uses {@link Encoding#BINARY} encoding, in
+     * which case its hash must be read and written with binary commands.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Check whether this Model uses the {@link Layout#BLOB} layout, in which
+     * case its hash is packed into a single string value.
+     */
+    public boolean isBlob() {
+        return blob;
+    }
+
+    /**
+     * The near cache of a {@link Cached} Model.
+     * 
+     * @return null if the Model is not cached.
+     */
+    NearCache getNearCache() {
+        return nearCache;
+    }
+
+    public Field getIdField() {
+        return idField;
+    }
+
+    public Class<?> getIdType() {
+        return idType;
+    }
+
+    public List<FieldMetadata> getAttributes() {
+        return attributes;
+    }
+
+    public List<FieldMetadata> getReferences() {
+        return references;
+    }
+
+    /**
+     * Attributes and References, the fields stored in the model hash.
+     */
+    public List<FieldMetadata> getHashFields() {
+        return hashFields;
+    }
+
+    /**
+     * Attributes and References whose values are kept in an index set. Arrays
+     * and Collections maintain their own element indexes.
+     */
+    public List<FieldMetadata> getIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Check whether every indexed Attribute is indexed under the string it is
+     * stored as, which a Date, stored as milliseconds, is not.
+     */
+    boolean isIndexedAsStored() {
+        return indexedAsStored;
+    }
+
+    public List<FieldMetadata> getArrays() {
+        return arrays;
+    }
+
+    public List<FieldMetadata> getCollections() {
+        return collections;
+    }
+
+    /**
+     * {@link Lob} fields, each stored in its own Class:id:field key.
+     */
+    public List<FieldMetadata> getLobs() {
+        return lobs;
+    }
+
+    /**
+     * Look up a JOhm-annotated field by its name.
+     *
+     * @return null if the Model has no such field.
+     */
+    public FieldMetadata getField(final String fieldName) {
+        return fieldsByName.get(fieldName);
+    }
+
+    /**
+     * The key of the hash of the model with the given id, which also
+     * identifies that model within a Session.
+     */
+    String keyOf(final String id) {
+        return name + ":" + id;
+    }
+
+    /**
+     * The key of the sorted index of the given Attribute, apart from the
+     * Class:field:value index sets.
+     */
+    String sortedIndexKeyOf(final FieldMetadata sorted) {
+        return name + ":_sorted:" + sorted.getStorageKey();
+    }
+
+    /**
+     * Read the id of the given model instance.
+     */
+    String getId(final Object model) {
+        Object idRawValue;
+        try {
+            idRawValue = idField.get(model);
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+        // primitive type long should not be valid
+        if (idType.isAssignableFrom(Long.class)) {
+            return (idRawValue == null) ? null : ((Long) idRawValue).toString();
+        }
+        if (idType.isAssignableFrom(String.class)) {
+            return (String) idRawValue;
+        }
+        if (idType.isAssignableFrom(UUID.class)) {
+            return (idRawValue == null) ? null : ((UUID) idRawValue).toString();
+        }
+        throw new JOhmException("Unknown Id field type. The field annotated "
+                + "with @Id should be a Long, a String or an UUID.",
+                JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+    }
+
+    /**
+     * Write the given id on the model instance.
+     */
+    void loadId(final Object model, final String id) {
+        try {
+            if (idType.isAssignableFrom(Long.class) || idType.isAssignableFrom(long.class)) {
+                idField.set(model, Long.parseLong(id));
+            } else if (idType.isAssignableFrom(String.class)) {
+                idField.set(model, id);
+            } else if (idType.isAssignableFrom(UUID.class)) {
+                idField.set(model, UUID.fromString(id));
+            } else {
+                throw new JOhmException("Unknown Id field type. The field annotated "
+                        + "with @Id should be an a Long, a String or an UUID.",
+                        JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+
+    /**
+     * Create a new, empty instance of this Model.
+     */
+    Object newInstance() {
+        try {
+            return modelClazz.newInstance();
+        } catch (InstantiationException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.INSTANTIATION_EXCEPTION);
+        } catch (IllegalAccessException e) {
+            throw new JOhmException(e, JOhmExceptionMeta.ILLEGAL_ACCESS_EXCEPTION);
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package redis.clients.johm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.TransactionBlock;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+import redis.clients.johm.JOhmUtils.JOhmCollectionDataType;
+
+/**
+ * ModelWriter writes a save or delete with a single EVALSHA, so that a write
+ * is atomic and, when the model may already be stored, only what differs from
+ * the model is written: an update of a single field touches that hash field
+ * and, if it is indexed, its old and new index sets only. JOhm.update
+ * restricts the same comparison to the fields it is given.
+ *
+ * The hash of a STRING-encoded HASH Model is indexed under its stored values,
+ * so it is compared by {@link LuaScript#SAVE} and {@link LuaScript#DELETE}
+ * themselves: the new values, index keys and array elements are sent, and the
+ * scripts read the stored ones and remove their index entries, in one round
+ * trip.
+ *
+ * Otherwise, and whenever a stored indexed value turns out to be compressed,
+ * only the client can decode the stored values: the stored attributes,
+ * references and arrays are first read in one pipelined round trip, and the
+ * whole write set, the hash fields to set and delete, the membership of the
+ * all set, the index entries to add and remove, the contents of the arrays
+ * and the keys to delete, is computed here and flushed with
+ * {@link LuaScript#WRITE}. That script first checks that the stored state is
+ * still the one that was read, and writes nothing otherwise, in which case
+ * the state is read and compared again, so that a concurrent write can never
+ * leave index entries behind. The blob of a BLOB Model is read whole and
+ * rewritten whole when any of its fields changed.
+ *
+ * A writer is meant for a single write and is not thread-safe.
+ */
+final class ModelWriter {
+    private static final int MAX_ATTEMPTS = 16;
+    private static final int MAX_ARGUMENTS = 1000;
+    private final ModelMetadata metadata;
+    private final Nest<?> nest;
+    private final Object model;
+    private final String id;
+    private final String key;
+    private final Map<String, String> hashToSet = new HashMap<String, String>();
+    private final List<String> hashToDelete = new ArrayList<String>();
+    private final Set<String> indexesToRemove = new LinkedHashSet<String>();
+    private final Set<String> indexesToAdd = new LinkedHashSet<String>();
+    private final Set<String> sortedToRemove = new LinkedHashSet<String>();
+    private final Map<String, Double> sortedToAdd = new LinkedHashMap<String, Double>();
+    private final Map<String, List<String>> lists = new LinkedHashMap<String, List<String>>();
+    private final Set<String> keysToDelete = new LinkedHashSet<String>();
+    private boolean removeFromAll;
+
+    ModelWriter(final Nest<?> nest, final Object model) {
+        this(nest, model.getClass(), model, ModelMetadata.of(model.getClass()).getId(model));
+    }
+
+    /**
+     * A writer deleting the model of the given class and id.
+     */
+    ModelWriter(final Nest<?> nest, final Class<?> clazz, final String id) {
+        this(nest, clazz, null, id);
+    }
+
+    private ModelWriter(final Nest<?> nest, final Class<?> clazz, final Object model,
+            final String id) {
+        this.metadata = ModelMetadata.of(clazz);
+        this.nest = nest;
+        this.model = model;
+        this.id = id;
+        this.key = nest.cat(id).key();
+    }
+
+    /**
+     * Write the model.
+     *
+     * @param mayBeStored
+     *            false if the model is known not to be stored yet, in which
+     *            case its current state is not read.
+     */
+    void write(final boolean mayBeStored) {
+        List<FieldMetadata> hashFields = metadata.getHashFields();
+        if (mayBeStored && comparesOnServer()
+                && save(false, hashFields, metadata.getArrays()) != null) {
+            return;
+        }
+        for (int attempt = 1;; attempt++) {
+            Stored stored = mayBeStored ? read(hashFields, metadata.getArrays()) : null;
+            diff(stored, hashFields, metadata.getArrays());
+            if (flush(mayBeStored, stored)) {
+                return;
+            }
+            retry(attempt);
+        }
+    }
+
+    /**
+     * Write the given fields of a stored model, and nothing else.
+     *
+     * @return false if the model is not stored, in which case nothing is
+     *         written.
+     */
+    boolean update(final List<FieldMetadata> hashFields, final List<FieldMetadata> arrays) {
+        if (comparesOnServer()) {
+            Boolean written = save(true, hashFields, arrays);
+            if (written != null) {
+                return written;
+            }
+        }
+        for (int attempt = 1;; attempt++) {
+            Stored stored = read(hashFields, arrays);
+            if (stored == null) {
+                return false;
+            }
+            diff(stored, hashFields, arrays);
+            if (flush(true, stored)) {
+                return true;
+            }
+            retry(attempt);
+        }
+    }
+
+    /**
+     * Delete the model: its hash or blob, its arrays and Lobs, its membership
+     * of the all set and, if asked to, its index entries.
+     *
+     * @return the ids of the models its References refer to, or null if the
+     *         model is not stored, in which case nothing is deleted.
+     */
+    Map<FieldMetadata, String> delete(final boolean deleteIndexes) {
+        Map<FieldMetadata, String> referenceIds = new HashMap<FieldMetadata, String>();
+        if (comparesOnServer()) {
+            Boolean deleted = remove(deleteIndexes, referenceIds);
+            if (deleted != null) {
+                return deleted ? referenceIds : null;
+            }
+        }
+        for (int attempt = 1;; attempt++) {
+            Stored stored = read(metadata.getHashFields(), metadata.getArrays());
+            if (stored == null) {
+                return null;
+            }
+            for (FieldMetadata reference : metadata.getReferences()) {
+                String storedValue = stored.values.get(reference.getStorageKey());
+                if (storedValue != null) {
+                    referenceIds.put(reference, reference.decodeReference(storedValue));
+                }
+            }
+            if (deleteIndexes) {
+                for (FieldMetadata indexed : metadata.getIndexed()) {
+                    String storedValue = stored.values.get(indexed.getStorageKey());
+                    if (storedValue != null) {
+                        collectIndex(indexesToRemove, indexed, indexed.isReference() ? indexed
+                                .decodeReference(storedValue) : indexed.toObject(storedValue));
+                    }
+                    if (indexed.isSorted()) {
+                        sortedToRemove.add(metadata.sortedIndexKeyOf(indexed));
+                    }
+                }
+                for (FieldMetadata array : metadata.getArrays()) {
+                    if (array.isIndexed()) {
+                        for (String element : stored.arrays.get(array)) {
+                            indexesToRemove.add(nest.cat(array.getName()).cat(element).key());
+                        }
+                    }
+                }
+            }
+            keysToDelete.add(key);
+            for (FieldMetadata array : metadata.getArrays()) {
+                keysToDelete.add(nest.cat(id).cat(array.getName()).key());
+            }
+            for (FieldMetadata lob : metadata.getLobs()) {
+                keysToDelete.add(nest.cat(id).cat(lob.getName()).key());
+            }
+            removeFromAll = metadata.isSupportAll();
+            if (flush(true, stored)) {
+                return referenceIds;
+            }
+            referenceIds.clear();
+            retry(attempt);
+        }
+    }
+
+    /**
+     * Check whether the stored state can be compared with the model by the
+     * scripts themselves, which only know the STRING encoding of a HASH
+     * Model, and only when it is indexed under its stored values.
+     */
+    private boolean comparesOnServer() {
+        return !metadata.isBinary() && !metadata.isBlob() && metadata.isIndexedAsStored()
+                && JOhmUtils.converter.getClass() == ConverterImpl.class;
+    }
+
+    /**
+     * Save the given fields with {@link LuaScript#SAVE}.
+     *
+     * Its arguments are "save" or "update", the id, the position of the all
+     * set in KEYS or 0, the near cache channel or '', then the number of hash
+     * fields and, for each, its name, "1" or "0" whether it is set, its value,
+     * its index key prefix or '', the positions of its new index key and of
+     * its sorted index key or 0, and its new score or ''. The arrays follow,
+     * as their number and, for each, the position of its key, its index key
+     * prefix or '', its length and its elements. KEYS holds the model key
+     * first and every key known here; the index keys of the stored values are
+     * derived from them by the script.
+     *
+     * @return true once saved, false if updating a model that is not stored,
+     *         or null if it must be written by the client instead, in which
+     *         case nothing was written.
+     */
+    private Boolean save(final boolean updating, final List<FieldMetadata> hashFields,
+            final List<FieldMetadata> arrays) {
+        Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+        keys.put(key, 1);
+        List<byte[]> args = new ArrayList<byte[]>();
+        args.add(encode(updating ? "update" : "save"));
+        args.add(encode(id));
+        args.add(position(keys, metadata.isSupportAll() ? nest.cat("all").key() : null));
+        args.add(encode(metadata.getNearCache() == null ? "" : NearCache.CHANNEL));
+        args.add(encode(String.valueOf(hashFields.size())));
+        for (FieldMetadata field : hashFields) {
+            String value = toRedisString(field);
+            args.add(encode(field.getStorageKey()));
+            args.add(encode(value == null ? "0" : "1"));
+            args.add(encode(value == null ? "" : value));
+            if (field.isIndexed()) {
+                Object indexValue = indexValue(model, field);
+                args.add(encode(nest.cat(field.getStorageKey()).key() + ":"));
+                args.add(position(keys, JOhmUtils.isNullOrEmpty(indexValue) ? null : nest
+                        .cat(field.getStorageKey()).cat(indexValue).key()));
+            } else {
+                args.add(encode(""));
+                args.add(position(keys, null));
+            }
+            boolean sorted = field.isIndexed() && field.isSorted();
+            args.add(position(keys, sorted ? metadata.sortedIndexKeyOf(field) : null));
+            args.add(encode(sorted && value != null ? String.valueOf(JOhmUtils.toScore(field
+                    .get(model))) : ""));
+        }
+        args.add(encode(String.valueOf(arrays.size())));
+        for (FieldMetadata array : arrays) {
+            List<String> elements = arrayElements(model, array);
+            args.add(position(keys, nest.cat(id).cat(array.getName()).key()));
+            args.add(encode(array.isIndexed() ? nest.cat(array.getName()).key() + ":" : ""));
+            args.add(encode(String.valueOf(elements.size())));
+            for (String element : elements) {
+                args.add(encode(element));
+            }
+        }
+        Object reply = nest.evalsha(LuaScript.SAVE, keyList(keys), args);
+        if (Long.valueOf(-1).equals(reply)) {
+            return null;
+        }
+        boolean written = Long.valueOf(1).equals(reply);
+        if (written) {
+            invalidate();
+        }
+        return written;
+    }
+
+    /**
+     * Delete the model with {@link LuaScript#DELETE}, collecting the ids its
+     * References refer to.
+     *
+     * Its arguments are the id, the position of the all set in KEYS or 0,
+     * the near cache channel or '', then the number of hash fields to read
+     * and, for each, its name, its index key prefix or '' and the position of
+     * its sorted index key or 0. The indexed arrays follow, as their number
+     * and, for each, the position of its key and its index key prefix, then
+     * the number of keys to delete and their positions.
+     *
+     * @return true once deleted, false if the model is not stored, or null if
+     *         it must be deleted by the client instead, in which case nothing
+     *         was deleted.
+     */
+    private Boolean remove(final boolean deleteIndexes,
+            final Map<FieldMetadata, String> referenceIds) {
+        Set<FieldMetadata> fields = new LinkedHashSet<FieldMetadata>(metadata.getReferences());
+        if (deleteIndexes) {
+            fields.addAll(metadata.getIndexed());
+        }
+        Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+        keys.put(key, 1);
+        List<byte[]> args = new ArrayList<byte[]>();
+        args.add(encode(id));
+        args.add(position(keys, metadata.isSupportAll() ? nest.cat("all").key() : null));
+        args.add(encode(metadata.getNearCache() == null ? "" : NearCache.CHANNEL));
+        args.add(encode(String.valueOf(fields.size())));
+        for (FieldMetadata field : fields) {
+            boolean indexed = deleteIndexes && field.isIndexed();
+            args.add(encode(field.getStorageKey()));
+            args.add(encode(indexed ? nest.cat(field.getStorageKey()).key() + ":" : ""));
+            args.add(position(keys, indexed && field.isSorted() ? metadata
+                    .sortedIndexKeyOf(field) : null));
+        }
+        List<FieldMetadata> indexedArrays = new ArrayList<FieldMetadata>();
+        for (FieldMetadata array : metadata.getArrays()) {
+            if (deleteIndexes && array.isIndexed()) {
+                indexedArrays.add(array);
+            }
+        }
+        args.add(encode(String.valueOf(indexedArrays.size())));
+        for (FieldMetadata array : indexedArrays) {
+            args.add(position(keys, nest.cat(id).cat(array.getName()).key()));
+            args.add(encode(nest.cat(array.getName()).key() + ":"));
+        }
+        List<String> deleted = new ArrayList<String>();
+        deleted.add(key);
+        for (FieldMetadata array : metadata.getArrays()) {
+            deleted.add(nest.cat(id).cat(array.getName()).key());
+        }
+        for (FieldMetadata lob : metadata.getLobs()) {
+            deleted.add(nest.cat(id).cat(lob.getName()).key());
+        }
+        args.add(encode(String.valueOf(deleted.size())));
+        for (String keyToDelete : deleted) {
+            args.add(position(keys, keyToDelete));
+        }
+        Object reply = nest.evalsha(LuaScript.DELETE, keyList(keys), args);
+        if (reply == null) {
+            return false;
+        }
+        if (!(reply instanceof List<?>)) {
+            return null;
+        }
+        invalidate();
+        List<?> stored = (List<?>) reply;
+        int iter = 0;
+        for (FieldMetadata field : fields) {
+            Object value = stored.get(iter++);
+            if (field.isReference() && value != null) {
+                referenceIds.put(field, SafeEncoder.encode((byte[]) value));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the write set computed from a stored state that has changed
+     * since, so that it is computed again.
+     */
+    private void retry(final int attempt) {
+        if (attempt == MAX_ATTEMPTS) {
+            throw new JOhmException(key + " kept being written concurrently",
+                    JOhmExceptionMeta.GENERIC_EXCEPTION);
+        }
+        hashToSet.clear();
+        hashToDelete.clear();
+        indexesToRemove.clear();
+        indexesToAdd.clear();
+        sortedToRemove.clear();
+        sortedToAdd.clear();
+        lists.clear();
+        keysToDelete.clear();
+        removeFromAll = false;
+    }
+
+    private void diff(final Stored stored, final List<FieldMetadata> hashFields,
+            final List<FieldMetadata> arrays) {
+        for (FieldMetadata field : hashFields) {
+            String value = toRedisString(field);
+            String storedValue = stored == null ? null : stored.values.get(field
+                    .getStorageKey());
+            if (value == null ? storedValue == null : value.equals(storedValue)) {
+                continue;
+            }
+            if (value != null) {
+                hashToSet.put(field.getStorageKey(), value);
+            } else {
+                hashToDelete.add(field.getStorageKey());
+            }
+            if (field.isIndexed()) {
+                if (storedValue != null) {
+                    collectIndex(indexesToRemove, field, field.isReference() ? field
+                            .decodeReference(storedValue) : field.toObject(storedValue));
+                }
+                collectIndex(indexesToAdd, field, indexValue(model, field));
+                if (field.isSorted() && value != null) {
+                    sortedToAdd.put(metadata.sortedIndexKeyOf(field), JOhmUtils
+                            .toScore(field.get(model)));
+                } else if (field.isSorted()) {
+                    sortedToRemove.add(metadata.sortedIndexKeyOf(field));
+                }
+            }
+        }
+        for (FieldMetadata array : arrays) {
+            List<String> elements = arrayElements(model, array);
+            List<String> storedElements = stored == null ? null : stored.arrays.get(array);
+            if (elements.equals(storedElements)) {
+                continue;
+            }
+            if (array.isIndexed()) {
+                if (storedElements != null) {
+                    for (String element : storedElements) {
+                        if (!elements.contains(element)) {
+                            indexesToRemove.add(nest.cat(array.getName()).cat(element).key());
+                        }
+                    }
+                }
+                for (String element : elements) {
+                    if (storedElements == null || !storedElements.contains(element)) {
+                        indexesToAdd.add(nest.cat(array.getName()).cat(element).key());
+                    }
+                }
+            }
+            lists.put(nest.cat(id).cat(array.getName()).key(), elements);
+        }
+    }
+
+    /**
+     * Read the stored state of the model in one pipelined round trip. The
+     * hash of a binary Model is read with a binary HMGET inside MULTI/EXEC,
+     * as pipelines only decode hash values to strings. The blob of a BLOB
+     * Model is read whole with GET.
+     *
+     * @return null if the model is not stored.
+     */
+    private Stored read(final List<FieldMetadata> hashFields,
+            final List<FieldMetadata> arrays) {
+        final String[] storageKeys = new String[hashFields.size()];
+        for (int iter = 0; iter < storageKeys.length; iter++) {
+            storageKeys[iter] = hashFields.get(iter).getStorageKey();
+        }
+        final Map<FieldMetadata, Response<List<String>>> storedArrays = new HashMap<FieldMetadata, Response<List<String>>>();
+        final List<Response<?>> replies = new ArrayList<Response<?>>(2);
+        if (metadata.isBlob()) {
+            nest.pipelined(new PipelineBlock() {
+                public void execute() {
+                    replies.add(get(SafeEncoder.encode(key)));
+                    for (FieldMetadata array : arrays) {
+                        storedArrays.put(array, lrange(key + ":" + array.getName(), 0, -1));
+                    }
+                }
+            });
+        } else if (metadata.isBinary()) {
+            nest.multi(new TransactionBlock() {
+                public void execute() throws JedisException {
+                    replies.add(exists(key));
+                    if (storageKeys.length > 0) {
+                        replies.add(hmget(SafeEncoder.encode(key), SafeEncoder
+                                .encodeMany(storageKeys)));
+                    }
+                    for (FieldMetadata array : arrays) {
+                        storedArrays.put(array, lrange(key + ":" + array.getName(), 0, -1));
+                    }
+                }
+            });
+        } else {
+            nest.pipelined(new PipelineBlock() {
+                public void execute() {
+                    replies.add(exists(key));
+                    if (storageKeys.length > 0) {
+                        replies.add(hmget(key, storageKeys));
+                    }
+                    for (FieldMetadata array : arrays) {
+                        storedArrays.put(array, lrange(key + ":" + array.getName(), 0, -1));
+                    }
+                }
+            });
+        }
+        Stored stored;
+        if (metadata.isBlob()) {
+            byte[] blob = (byte[]) replies.get(0).get();
+            if (blob == null) {
+                return null;
+            }
+            stored = new Stored(blob, BlobLayout.unpack(blob, metadata.isBinary()));
+            for (String storageKey : storageKeys) {
+                stored.values.put(storageKey, stored.blob.get(storageKey));
+            }
+        } else if (!Boolean.TRUE.equals(replies.get(0).get())) {
+            return null;
+        } else {
+            stored = new Stored(null, null);
+        }
+        if (!metadata.isBlob() && storageKeys.length > 0) {
+            List<?> values = (List<?>) replies.get(1).get();
+            for (int iter = 0; iter < storageKeys.length; iter++) {
+                Object value = values.get(iter);
+                stored.values.put(storageKeys[iter], value instanceof byte[] ? BinaryEncoding
+                        .string((byte[]) value) : (String) value);
+            }
+        }
+        for (Map.Entry<FieldMetadata, Response<List<String>>> array : storedArrays.entrySet()) {
+            stored.arrays.put(array.getKey(), array.getValue().get());
+        }
+        return stored;
+    }
+
+    /**
+     * Run the write script, guarded by the stored state that was read.
+     *
+     * The script arguments are the guard, then the commands to run. The guard
+     * is "none" when nothing was read, "absent" when the model was found not
+     * to be stored, "blob" followed by the stored blob, or "hash" followed by
+     * the number of hash fields read and, for each, its name, "1" or "0"
+     * whether it is set, and its value. The stored arrays follow, as their
+     * number and, for each, the position of its key in KEYS, its length and
+     * its elements. The commands are given as their number and, for each,
+     * its number of words, the position of its key in KEYS or 0, and its
+     * words without the key. Every key the script touches is passed in KEYS,
+     * the model key first.
+     *
+     * @param read
+     *            false if the stored state was not read.
+     * @return false if the stored state changed, in which case nothing was
+     *         written.
+     */
+    private boolean flush(final boolean read, final Stored stored) {
+        // to support getAll
+        final String allKey = nest.cat("all").key();
+        boolean addToAll = stored == null && metadata.isSupportAll() && keysToDelete.isEmpty();
+        final Map<String, String> blob = metadata.isBlob()
+                && (!hashToSet.isEmpty() || !hashToDelete.isEmpty()) ? mergeBlob(stored) : null;
+        final NearCache cache = metadata.getNearCache();
+        if (!addToAll && hashToSet.isEmpty() && hashToDelete.isEmpty()
+                && indexesToRemove.isEmpty() && indexesToAdd.isEmpty()
+                && sortedToRemove.isEmpty() && sortedToAdd.isEmpty() && lists.isEmpty()
+                && keysToDelete.isEmpty()) {
+            return true;
+        }
+
+        Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+        keys.put(key, 1);
+        List<byte[]> args = new ArrayList<byte[]>();
+        if (!read) {
+            args.add(encode("none"));
+        } else if (stored == null) {
+            args.add(encode("absent"));
+        } else if (metadata.isBlob()) {
+            args.add(encode("blob"));
+            args.add(stored.raw);
+        } else {
+            args.add(encode("hash"));
+            args.add(encode(String.valueOf(stored.values.size())));
+            for (Map.Entry<String, String> value : stored.values.entrySet()) {
+                args.add(encode(value.getKey()));
+                args.add(encode(value.getValue() == null ? "0" : "1"));
+                args.add(value.getValue() == null ? new byte[0] : valueBytes(value.getValue()));
+            }
+        }
+        Map<FieldMetadata, List<String>> storedArrays = stored == null ? null : stored.arrays;
+        if (storedArrays == null) {
+            storedArrays = new HashMap<FieldMetadata, List<String>>();
+        }
+        args.add(encode(String.valueOf(storedArrays.size())));
+        for (Map.Entry<FieldMetadata, List<String>> array : storedArrays.entrySet()) {
+            args.add(encode(String.valueOf(keyIndex(keys, key + ":"
+                    + array.getKey().getName()))));
+            args.add(encode(String.valueOf(array.getValue().size())));
+            for (String element : array.getValue()) {
+                args.add(encode(element));
+            }
+        }
+
+        List<byte[][]> commands = new ArrayList<byte[][]>();
+        for (String index : indexesToRemove) {
+            addCommand(commands, keys, "SREM", index, 1, encode(id));
+        }
+        for (String index : indexesToAdd) {
+            addCommand(commands, keys, "SADD", index, 1, encode(id));
+        }
+        for (String sorted : sortedToRemove) {
+            addCommand(commands, keys, "ZREM", sorted, 1, encode(id));
+        }
+        for (Map.Entry<String, Double> sorted : sortedToAdd.entrySet()) {
+            addCommand(commands, keys, "ZADD", sorted.getKey(), 2,
+                    encode(String.valueOf(sorted.getValue())), encode(id));
+        }
+        if (addToAll) {
+            addCommand(commands, keys, "SADD", allKey, 1, encode(id));
+        }
+        if (removeFromAll) {
+            addCommand(commands, keys, "SREM", allKey, 1, encode(id));
+        }
+        if (blob != null && blob.isEmpty()) {
+            addCommand(commands, keys, "DEL", key, 1);
+        } else if (blob != null) {
+            addCommand(commands, keys, "SET", key, 1,
+                    BlobLayout.pack(blob, metadata.isBinary()));
+        }
+        if (!metadata.isBlob() && !hashToSet.isEmpty()) {
+            List<byte[]> hmset = new ArrayList<byte[]>();
+            for (Map.Entry<String, String> field : hashToSet.entrySet()) {
+                hmset.add(encode(field.getKey()));
+                hmset.add(valueBytes(field.getValue()));
+            }
+            addCommand(commands, keys, "HMSET", key, 2, hmset);
+        }
+        if (!metadata.isBlob() && !hashToDelete.isEmpty()) {
+            List<byte[]> hdel = new ArrayList<byte[]>();
+            for (String field : hashToDelete) {
+                hdel.add(encode(field));
+            }
+            addCommand(commands, keys, "HDEL", key, 1, hdel);
+        }
+        for (Map.Entry<String, List<String>> list : lists.entrySet()) {
+            addCommand(commands, keys, "DEL", list.getKey(), 1);
+            if (!list.getValue().isEmpty()) {
+                List<byte[]> rpush = new ArrayList<byte[]>();
+                for (String element : list.getValue()) {
+                    rpush.add(encode(element));
+                }
+                addCommand(commands, keys, "RPUSH", list.getKey(), 1, rpush);
+            }
+        }
+        for (String keyToDelete : keysToDelete) {
+            addCommand(commands, keys, "DEL", keyToDelete, 1);
+        }
+        if (cache != null) {
+            addCommand(commands, keys, "PUBLISH", null, 2, encode(NearCache.CHANNEL),
+                    encode(key));
+        }
+        args.add(encode(String.valueOf(commands.size())));
+        for (byte[][] command : commands) {
+            args.add(encode(String.valueOf(command.length - 1)));
+            for (byte[] word : command) {
+                args.add(word);
+            }
+        }
+
+        boolean written = Long.valueOf(1).equals(nest.evalsha(LuaScript.WRITE, keyList(keys),
+                args));
+        if (written) {
+            invalidate();
+        }
+        return written;
+    }
+
+    private void invalidate() {
+        NearCache cache = metadata.getNearCache();
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    private static void addCommand(final List<byte[][]> commands,
+            final Map<String, Integer> keys, final String name, final String key,
+            final int stride, final byte[]... arguments) {
+        addCommand(commands, keys, name, key, stride, Arrays.asList(arguments));
+    }
+
+    /**
+     * Add a command on the given key, or on none if it is null, split into
+     * commands of at most MAX_ARGUMENTS arguments, as a script can only pass
+     * that many to redis.call. Arguments are kept together by groups of
+     * stride, such as a hash field and its value.
+     */
+    private static void addCommand(final List<byte[][]> commands,
+            final Map<String, Integer> keys, final String name, final String key,
+            final int stride, final List<byte[]> arguments) {
+        int chunk = MAX_ARGUMENTS - MAX_ARGUMENTS % stride;
+        int from = 0;
+        do {
+            List<byte[]> part = arguments.subList(from,
+                    Math.min(from + chunk, arguments.size()));
+            byte[][] command = new byte[part.size() + 2][];
+            command[0] = position(keys, key);
+            command[1] = encode(name);
+            for (int i = 0; i < part.size(); i++) {
+                command[i + 2] = part.get(i);
+            }
+            commands.add(command);
+            from += chunk;
+        } while (from < arguments.size());
+    }
+
+    /**
+     * The position of the given key in the KEYS of the script, adding it if
+     * it is not there yet.
+     */
+    private static int keyIndex(final Map<String, Integer> keys, final String key) {
+        Integer index = keys.get(key);
+        if (index == null) {
+            index = keys.size() + 1;
+            keys.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * The position of the given key in KEYS as an argument, or "0" if it is
+     * null.
+     */
+    private static byte[] position(final Map<String, Integer> keys, final String key) {
+        return encode(key == null ? "0" : String.valueOf(keyIndex(keys, key)));
+    }
+
+    private static List<byte[]> keyList(final Map<String, Integer> keys) {
+        List<byte[]> keyList = new ArrayList<byte[]>(keys.size());
+        for (String scriptKey : keys.keySet()) {
+            keyList.add(encode(scriptKey));
+        }
+        return keyList;
+    }
+
+    private static byte[] encode(final String word) {
+        return SafeEncoder.encode(word);
+    }
+
+    /**
+     * The bytes of a hash value: raw for a binary Model, UTF-8 otherwise.
+     */
+    private byte[] valueBytes(final String value) {
+        return metadata.isBinary() ? BinaryEncoding.bytes(value) : encode(value);
+    }
+
+    /**
+     * The whole hash of a BLOB Model once the changes are applied, as the
+     * blob is always rewritten whole.
+     */
+    private Map<String, String> mergeBlob(final Stored stored) {
+        Map<String, String> blob = new HashMap<String, String>();
+        if (stored != null) {
+            blob.putAll(stored.blob);
+        }
+        blob.putAll(hashToSet);
+        for (String field : hashToDelete) {
+            blob.remove(field);
+        }
+        return blob;
+    }
+
+    private String toRedisString(final FieldMetadata field) {
+        return field.isReference() ? field.encodeReference(model) : field.encode(model);
+    }
+
+    private void collectIndex(final Set<String> indexes, final FieldMetadata indexed,
+            final Object value) {
+        if (!JOhmUtils.isNullOrEmpty(value)) {
+            indexes.add(nest.cat(indexed.getStorageKey()).cat(value).key());
+        }
+    }
+
+    /**
+     * The value an Attribute or Reference is indexed under: the attribute
+     * value itself, or the id of the referenced model.
+     */
+    static Object indexValue(final Object model, final FieldMetadata indexed) {
+        if (indexed.isReference()) {
+            return indexed.getReferenceId(model);
+        }
+        return indexed.get(model);
+    }
+
+    /**
+     * The list entries of an array, skipping null elements: element values
+     * for primitives, element ids for models.
+     */
+    private static List<String> arrayElements(final Object model, final FieldMetadata array) {
+        Object[] backingArray = (Object[]) array.get(model);
+        List<String> elements = new ArrayList<String>();
+        if (backingArray == null) {
+            return elements;
+        }
+        JOhmCollectionDataType elementType = array.getArrayElementType();
+        for (Object element : backingArray) {
+            if (element == null) {
+                continue;
+            }
+            if (elementType == JOhmCollectionDataType.MODEL) {
+                String elementId = JOhmUtils.getId(element);
+                if (elementId == null) {
+                    throw new MissingIdException();
+                }
+                elements.add(elementId);
+            } else {
+                elements.add(element.toString());
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * The stored attributes, references and arrays of a model.
+     */
+    private static final class Stored {
+        private final byte[] raw;
+        private final Map<String, String> blob;
+        private final Map<String, String> values = new HashMap<String, String>();
+        private final Map<FieldMetadata, List<String>> arrays = new HashMap<FieldMetadata, List<String>>();
+
+        /**
+         * @param raw
+         *            the blob of a BLOB Model as read, null otherwise.
+         * @param blob
+         *            the whole unpacked blob of a BLOB Model, null otherwise.
+         */
+        Stored(final byte[] raw, final Map<String, String> blob) {
+            this.raw = raw;
+            this.blob = blob;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package redis.clients.johm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * NearCache is the in-process cache of a {@link Cached} Model. It keeps the
+ * stored state of models, their hash and array lists as read from Redis,
+ * rather than model instances, so that every load still builds a fresh
+ * instance that its caller may change freely.
+ *
+ * Writers publish the "Class:id" key of every cached model they change on
+ * {@link #CHANNEL}, and a single listener thread per JVM evicts the matching
+ * entries. The listener holds one connection of the pool for as long as it
+ * runs, and clears all caches whenever it (re)subscribes, since messages may
+ * have been missed in between.
+ */
+final class NearCache {
+    static final String CHANNEL = "johm:invalidations";
+
+    private static final ConcurrentMap<String, NearCache> caches = new ConcurrentHashMap<String, NearCache>();
+    private static volatile Listener listener;
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, NearCache.Entry> entries;
+    private long generation;
+
+    /**
+     * The near cache of the Model with the given name, created on first use.
+     */
+    static NearCache of(final String modelName, final Cached cached) {
+        NearCache cache = caches.get(modelName);
+        if (cache == null) {
+            cache = new NearCache(modelName, cached);
+            NearCache existing = caches.putIfAbsent(modelName, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    private NearCache(final String modelName, final Cached cached) {
+        if (cached.maxSize() < 1 || cached.ttl() < 1) {
+            throw new JOhmException(modelName
+                    + " must have a positive near cache size and ttl",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        this.maxSize = cached.maxSize();
+        this.ttlMillis = cached.ttl() * 1000L;
+        this.entries = new LinkedHashMap<String, NearCache.Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, NearCache.Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return null if the model is not cached or its entry has expired.
+     */
+    synchronized Entry get(final String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * A stamp to take before reading a model from Redis, and to give back
+     * when caching what was read.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache the stored state of a model, unless some model was invalidated
+     * since the given generation, in which case what was read may already
+     * be stale.
+     */
+    synchronized void put(final String key, final Map<String, String> hash,
+            final Map<FieldMetadata, List<String>> arrays, final long readGeneration) {
+        if (readGeneration == generation) {
+            entries.put(key, new Entry(hash, arrays, System.currentTimeMillis()
+                    + ttlMillis));
+        }
+    }
+
+    synchronized void invalidate(final String key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Evict the model with the given "Class:id" key from its cache, if its
+     * Model is cached in this JVM.
+     */
+    static void evict(final String key) {
+        int separator = key.indexOf(':');
+        NearCache cache = separator < 0 ? null : caches.get(key.substring(0, separator));
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Make sure that invalidation messages published on the given pool are
+     * being listened to, moving the listener over if the pool changed. A new
+     * listener is given a second to subscribe before this returns. Only the
+     * call that starts a listener takes the lock.
+     */
+    static void listen(final JedisPool jedisPool) {
+        Listener current = listener;
+        if (current != null && current.jedisPool == jedisPool) {
+            return;
+        }
+        start(jedisPool);
+    }
+
+    private static synchronized void start(final JedisPool jedisPool) {
+        if (listener != null && listener.jedisPool == jedisPool) {
+            return;
+        }
+        if (listener != null) {
+            listener.stop();
+        }
+        listener = new Listener(jedisPool);
+        Thread thread = new Thread(listener, "johm-near-cache-invalidation");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            listener.subscribed.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void clearAll() {
+        for (NearCache cache : caches.values()) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * The stored state of a model.
+     */
+    static final class Entry {
+        final Map<String, String> hash;
+        final Map<FieldMetadata, List<String>> arrays;
+        private final long expiresAt;
+
+        Entry(final Map<String, String> hash, final Map<FieldMetadata, List<String>> arrays,
+                final long expiresAt) {
+            this.hash = hash;
+            this.arrays = arrays;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Listener extends JedisPubSub implements Runnable {
+        private final JedisPool jedisPool;
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+        private volatile boolean stopped;
+
+        Listener(final JedisPool jedisPool) {
+            this.jedisPool = jedisPool;
+        }
+
+        public void run() {
+            while (!stopped) {
+                Jedis jedis = null;
+                try {
+                    jedis = jedisPool.getResource();
+                    jedis.subscribe(this, CHANNEL);
+                    jedisPool.returnResource(jedis);
+                } catch (JedisException e) {
+                    if (jedis != null) {
+                        jedisPool.returnBrokenResource(jedis);
+                    }
+                    pause();
+                }
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            if (isSubscribed()) {
+                unsubscribe();
+            }
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+
+        @Override
+        public void onSubscribe(final String channel, final int subscribedChannels) {
+            clearAll();
+            subscribed.countDown();
+            if (stopped) {
+                unsubscribe();
+            }
+        }
+
+        @Override
+        public void onMessage(final String channel, final String message) {
+            evict(message);
+        }
+
+        @Override
+        public void onPMessage(final String pattern, final String channel,
+                final String message) {
+        }
+
+        @Override
+        public void onUnsubscribe(final String channel, final int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(final String pattern, final int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(final String pattern, final int subscribedChannels) {
+        }
+    }
+}
@@ -2,8 +2,12 @@ package redis.clients.johm;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.SortingParams;
 import redis.clients.jedis.TransactionBlock;
+import redis.clients.util.SafeEncoder;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -79,197 +83,517 @@ public class Nest<T> {
     // Redis Common Operations
     public String set(String value) {
         Jedis jedis = getResource();
-        String set = jedis.set(key(), value);
-        returnResource(jedis);
-        return set;
+        try {
+            String set = jedis.set(key(), value);
+            returnResource(jedis);
+            return set;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public String get() {
         Jedis jedis = getResource();
-        String string = jedis.get(key());
-        returnResource(jedis);
-        return string;
+        try {
+            String string = jedis.get(key());
+            returnResource(jedis);
+            return string;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long strlen() {
+        Jedis jedis = getResource();
+        try {
+            Long strlen = jedis.strlen(SafeEncoder.encode(key()));
+            returnResource(jedis);
+            return strlen;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    // SUBSTR, the former name of GETRANGE, is the one binary-safe in Jedis
+    public byte[] substr(int start, int end) {
+        Jedis jedis = getResource();
+        try {
+            byte[] substr = jedis.substr(SafeEncoder.encode(key()), start, end);
+            returnResource(jedis);
+            return substr;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long append(byte[] value) {
+        Jedis jedis = getResource();
+        try {
+            Long append = jedis.append(SafeEncoder.encode(key()), value);
+            returnResource(jedis);
+            return append;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long setrange(long offset, byte[] value) {
+        Jedis jedis = getResource();
+        try {
+            Long setrange = jedis.setrange(SafeEncoder.encode(key()), offset, value);
+            returnResource(jedis);
+            return setrange;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long incr() {
         Jedis jedis = getResource();
-        Long incr = jedis.incr(key());
-        returnResource(jedis);
-        return incr;
+        try {
+            Long incr = jedis.incr(key());
+            returnResource(jedis);
+            return incr;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long incrBy(long integer) {
+        Jedis jedis = getResource();
+        try {
+            Long incrBy = jedis.incrBy(key(), integer);
+            returnResource(jedis);
+            return incrBy;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long expire(int seconds) {
         Jedis jedis = getResource();
-        Long expire = jedis.expire(key(), seconds);
-        returnResource(jedis);
-        return expire;
+        try {
+            Long expire = jedis.expire(key(), seconds);
+            returnResource(jedis);
+            return expire;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public List<Object> multi(TransactionBlock transaction) {
         Jedis jedis = getResource();
-        List<Object> multi = jedis.multi(transaction);
-        returnResource(jedis);
-        return multi;
+        try {
+            List<Object> multi = jedis.multi(transaction);
+            returnResource(jedis);
+            return multi;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public List<Object> pipelined(PipelineBlock pipeline) {
+        Jedis jedis = getResource();
+        try {
+            List<Object> pipelined = jedis.pipelined(pipeline);
+            returnResource(jedis);
+            return pipelined;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long publish(String message) {
+        Jedis jedis = getResource();
+        try {
+            Long publish = jedis.publish(key(), message);
+            returnResource(jedis);
+            return publish;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long del() {
         Jedis jedis = getResource();
-        Long del = jedis.del(key());
-        returnResource(jedis);
-        return del;
+        try {
+            Long del = jedis.del(key());
+            returnResource(jedis);
+            return del;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Boolean exists() {
         Jedis jedis = getResource();
-        Boolean exists = jedis.exists(key());
-        returnResource(jedis);
-        return exists;
+        try {
+            Boolean exists = jedis.exists(key());
+            returnResource(jedis);
+            return exists;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public List<String> sort(SortingParams sortingParameters) {
+        Jedis jedis = getResource();
+        try {
+            List<String> sort = jedis.sort(key(), sortingParameters);
+            returnResource(jedis);
+            return sort;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     // Redis Hash Operations
     public String hmset(Map<String, String> hash) {
         Jedis jedis = getResource();
-        String hmset = jedis.hmset(key(), hash);
-        returnResource(jedis);
-        return hmset;
+        try {
+            String hmset = jedis.hmset(key(), hash);
+            returnResource(jedis);
+            return hmset;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Map<String, String> hgetAll() {
         Jedis jedis = getResource();
-        Map<String, String> hgetAll = jedis.hgetAll(key());
-        returnResource(jedis);
-        return hgetAll;
+        try {
+            Map<String, String> hgetAll = jedis.hgetAll(key());
+            returnResource(jedis);
+            return hgetAll;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public String hget(String field) {
         Jedis jedis = getResource();
-        String value = jedis.hget(key(), field);
-        returnResource(jedis);
-        return value;
+        try {
+            String value = jedis.hget(key(), field);
+            returnResource(jedis);
+            return value;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long hdel(String field) {
         Jedis jedis = getResource();
-        Long hdel = jedis.hdel(key(), field);
-        returnResource(jedis);
-        return hdel;
+        try {
+            Long hdel = jedis.hdel(key(), field);
+            returnResource(jedis);
+            return hdel;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long hlen() {
         Jedis jedis = getResource();
-        Long hlen = jedis.hlen(key());
-        returnResource(jedis);
-        return hlen;
+        try {
+            Long hlen = jedis.hlen(key());
+            returnResource(jedis);
+            return hlen;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Set<String> hkeys() {
         Jedis jedis = getResource();
-        Set<String> hkeys = jedis.hkeys(key());
-        returnResource(jedis);
-        return hkeys;
+        try {
+            Set<String> hkeys = jedis.hkeys(key());
+            returnResource(jedis);
+            return hkeys;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     // Redis Set Operations
     public Long sadd(String member) {
         Jedis jedis = getResource();
-        Long reply = jedis.sadd(key(), member);
-        returnResource(jedis);
-        return reply;
+        try {
+            Long reply = jedis.sadd(key(), member);
+            returnResource(jedis);
+            return reply;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long srem(String member) {
         Jedis jedis = getResource();
-        Long reply = jedis.srem(key(), member);
-        returnResource(jedis);
-        return reply;
+        try {
+            Long reply = jedis.srem(key(), member);
+            returnResource(jedis);
+            return reply;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long scard() {
+        Jedis jedis = getResource();
+        try {
+            Long scard = jedis.scard(key());
+            returnResource(jedis);
+            return scard;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Set<String> smembers() {
         Jedis jedis = getResource();
-        Set<String> members = jedis.smembers(key());
-        returnResource(jedis);
-        return members;
+        try {
+            Set<String> members = jedis.smembers(key());
+            returnResource(jedis);
+            return members;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    /**
+     * Incrementally iterate the set with SSCAN. SSCAN is not exposed by the
+     * Jedis client in use, so it is issued through a short script that also
+     * flattens the reply.
+     * 
+     * @return the next cursor followed by the members of this page.
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> sscan(String cursor, int count) {
+        List<byte[]> args = new ArrayList<byte[]>(2);
+        args.add(SafeEncoder.encode(cursor));
+        args.add(SafeEncoder.encode(String.valueOf(count)));
+        List<String> sscan = new ArrayList<String>();
+        for (byte[] reply : (List<byte[]>) evalsha(LuaScript.SSCAN, args)) {
+            sscan.add(SafeEncoder.encode(reply));
+        }
+        return sscan;
+    }
+
+    /**
+     * Run a script with EVALSHA, on this key and with the given arguments.
+     */
+    Object evalsha(LuaScript script, List<byte[]> args) {
+        List<byte[]> keys = new ArrayList<byte[]>(1);
+        keys.add(SafeEncoder.encode(key()));
+        return evalsha(script, keys, args);
+    }
+
+    /**
+     * Run a script with EVALSHA, on the given keys rather than this one.
+     */
+    Object evalsha(LuaScript script, List<byte[]> keys, List<byte[]> args) {
+        Jedis jedis = getResource();
+        try {
+            Object evalsha = script.eval(jedis, keys, args);
+            returnResource(jedis);
+            return evalsha;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     // Redis List Operations
     public Long rpush(String string) {
         Jedis jedis = getResource();
-        Long rpush = jedis.rpush(key(), string);
-        returnResource(jedis);
-        return rpush;
+        try {
+            Long rpush = jedis.rpush(key(), string);
+            returnResource(jedis);
+            return rpush;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long lpush(String string) {
         Jedis jedis = getResource();
-        Long lpush = jedis.lpush(key(), string);
-        returnResource(jedis);
-        return lpush;
+        try {
+            Long lpush = jedis.lpush(key(), string);
+            returnResource(jedis);
+            return lpush;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public String lset(int index, String value) {
         Jedis jedis = getResource();
-        String lset = jedis.lset(key(), index, value);
-        returnResource(jedis);
-        return lset;
+        try {
+            String lset = jedis.lset(key(), index, value);
+            returnResource(jedis);
+            return lset;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public String lindex(int index) {
         Jedis jedis = getResource();
-        String lindex = jedis.lindex(key(), index);
-        returnResource(jedis);
-        return lindex;
+        try {
+            String lindex = jedis.lindex(key(), index);
+            returnResource(jedis);
+            return lindex;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long llen() {
         Jedis jedis = getResource();
-        Long llen = jedis.llen(key());
-        returnResource(jedis);
-        return llen;
+        try {
+            Long llen = jedis.llen(key());
+            returnResource(jedis);
+            return llen;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long lrem(int count, String value) {
         Jedis jedis = getResource();
-        Long lrem = jedis.lrem(key(), count, value);
-        returnResource(jedis);
-        return lrem;
+        try {
+            Long lrem = jedis.lrem(key(), count, value);
+            returnResource(jedis);
+            return lrem;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public List<String> lrange(int start, int end) {
         Jedis jedis = getResource();
-        List<String> lrange = jedis.lrange(key(), start, end);
-        returnResource(jedis);
-        return lrange;
+        try {
+            List<String> lrange = jedis.lrange(key(), start, end);
+            returnResource(jedis);
+            return lrange;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     // Redis SortedSet Operations
     public Set<String> zrange(int start, int end) {
         Jedis jedis = getResource();
-        Set<String> zrange = jedis.zrange(key(), start, end);
-        returnResource(jedis);
-        return zrange;
+        try {
+            Set<String> zrange = jedis.zrange(key(), start, end);
+            returnResource(jedis);
+            return zrange;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long zadd(float score, String member) {
         Jedis jedis = getResource();
-        Long zadd = jedis.zadd(key(), score, member);
-        returnResource(jedis);
-        return zadd;
+        try {
+            Long zadd = jedis.zadd(key(), score, member);
+            returnResource(jedis);
+            return zadd;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Long zrem(String member) {
+        Jedis jedis = getResource();
+        try {
+            Long zrem = jedis.zrem(key(), member);
+            returnResource(jedis);
+            return zrem;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
+    }
+
+    public Set<String> zrangeByScore(String min, String max, int offset, int count) {
+        Jedis jedis = getResource();
+        try {
+            Set<String> zrangeByScore = jedis.zrangeByScore(key(), min, max, offset, count);
+            returnResource(jedis);
+            return zrangeByScore;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     public Long zcard() {
         Jedis jedis = getResource();
-        Long zadd = jedis.zcard(key());
-        returnResource(jedis);
-        return zadd;
+        try {
+            Long zadd = jedis.zcard(key());
+            returnResource(jedis);
+            return zadd;
+        } catch (RuntimeException e) {
+            returnBrokenResource(jedis);
+            throw e;
+        }
     }
 
     private void returnResource(final Jedis jedis) {
-        jedisPool.returnResource(jedis);
+        if (!Session.isBound(jedis)) {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Discard a connection a command failed on, as it may be left mid-reply
+     * or inside an unfinished MULTI.
+     */
+    private void returnBrokenResource(final Jedis jedis) {
+        if (!Session.discard(jedis)) {
+            jedisPool.returnBrokenResource(jedis);
+        }
     }
 
     private Jedis getResource() {
-        Jedis jedis;
-        jedis = jedisPool.getResource();
+        Jedis jedis = Session.connection(jedisPool);
+        if (jedis == null) {
+            jedis = jedisPool.getResource();
+        }
         return jedis;
     }
 
@@ -0,0 +1,351 @@
+package redis.clients.johm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.SortingParams;
+import redis.clients.jedis.TransactionBlock;
+import redis.clients.jedis.ZParams;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Query combines several indexed name/value criteria, as in
+ *
+ * <pre>
+ * JOhm.query(User.class).where(&quot;age&quot;, 30).and(&quot;room&quot;, &quot;a&quot;)
+ *         .or(&quot;age&quot;, 40).not(&quot;name&quot;, &quot;foo&quot;).list();
+ * </pre>
+ *
+ * where and binds tighter than or: the query above matches the models aged
+ * 30 in room a, and the models aged 40 not named foo. Criteria are matched
+ * on the same Class:field:value index sets as JOhm.find.
+ *
+ * The set algebra runs in Redis. The cardinalities of all index sets are read
+ * first, in one pipelined round trip, so that a conjunction holding an empty
+ * set is dropped without further work and the others are intersected
+ * smallest set first. The remaining SINTER, SDIFF and SUNION steps then run in
+ * a single MULTI/EXEC, through temporary keys that are deleted in the same
+ * transaction. Only the ids that match are sent back and hydrated.
+ *
+ * Ordering and paging also run in that transaction, with SORT or through a
+ * sorted index, so that only the requested page is sent back and hydrated.
+ * Ordering by a String attribute is only reliable for data that has never
+ * been stored compressed.
+ */
+public final class Query<T> {
+    private final Class<?> clazz;
+    private final ModelMetadata metadata;
+    private final JedisPool jedisPool;
+    private final List<Conjunction> conjunctions = new ArrayList<Conjunction>();
+    private FieldMetadata order;
+    private boolean descending;
+    private int offset;
+    private int count = -1;
+    private String[] fieldNames = new String[0];
+
+    Query(final Class<?> clazz, final JedisPool jedisPool) {
+        this.metadata = ModelMetadata.of(clazz);
+        this.clazz = clazz;
+        this.jedisPool = jedisPool;
+    }
+
+    /**
+     * Match the models whose indexed attribute, reference, array or
+     * collection holds the given value.
+     */
+    public Query<T> where(final String attributeName, final Object attributeValue) {
+        return and(attributeName, attributeValue);
+    }
+
+    /**
+     * Also require the given value, in the current conjunction.
+     */
+    public Query<T> and(final String attributeName, final Object attributeValue) {
+        current().included.add(indexKey(attributeName, attributeValue));
+        return this;
+    }
+
+    /**
+     * Start a new conjunction, which matches the given value.
+     */
+    public Query<T> or(final String attributeName, final Object attributeValue) {
+        if (!conjunctions.isEmpty()) {
+            conjunctions.add(new Conjunction());
+        }
+        return and(attributeName, attributeValue);
+    }
+
+    /**
+     * Exclude the given value from the current conjunction.
+     */
+    public Query<T> not(final String attributeName, final Object attributeValue) {
+        current().excluded.add(indexKey(attributeName, attributeValue));
+        return this;
+    }
+
+    /**
+     * Order the matching models by the given attribute. An attribute with a
+     * sorted index is ordered through that index, in which case models
+     * without a value come first, as for 0. Any other attribute of a Model
+     * with the default layout and encoding is ordered with SORT BY
+     * Class:*->attribute: numerically for numbers and Dates, lexically
+     * otherwise. A String attribute is ordered by its stored form, so its
+     * order is only reliable for data that has never been stored compressed,
+     * and running the query fails while compression is enabled.
+     */
+    public Query<T> orderBy(final String attributeName, final boolean ascending) {
+        FieldMetadata field = metadata.getField(attributeName);
+        if (field == null || !field.isAttribute()) {
+            throw new InvalidFieldException();
+        }
+        if (!field.isSorted() && (metadata.isBinary() || metadata.isBlob())) {
+            throw new JOhmException(attributeName + " must have a sorted index to order "
+                    + metadata.getName() + " by it, as its models are not plain hashes",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        this.order = field;
+        this.descending = !ascending;
+        return this;
+    }
+
+    /**
+     * Return only count of the matching models, skipping the first offset
+     * ones.
+     */
+    public Query<T> limit(final int offset, final int count) {
+        if (offset < 0 || count < 0) {
+            throw new JOhmException("Offset and count can not be negative",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        this.offset = offset;
+        this.count = count;
+        return this;
+    }
+
+    /**
+     * Hydrate only the given fields of the matching models, as
+     * {@link JOhm#get(Class, String, String...)} does.
+     */
+    public Query<T> select(final String... fieldNames) {
+        this.fieldNames = fieldNames.clone();
+        return this;
+    }
+
+    /**
+     * Run the query and hydrate the matching models.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> list() {
+        Session session = Session.open(jedisPool);
+        try {
+            List<String> ids = ids();
+            List<T> results = new ArrayList<T>(ids.size());
+            for (Object model : new ModelLoader(jedisPool, JOhm.getBatchSize()).loadAll(
+                    clazz, ids, fieldNames)) {
+                if (model != null) {
+                    results.add((T) model);
+                }
+            }
+            return results;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Run the query without hydrating the matching models.
+     */
+    public List<String> ids() {
+        if (conjunctions.isEmpty()) {
+            throw new JOhmException("A query needs at least one criterion",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        if (order != null && order.getType().equals(String.class)
+                && Compression.getThreshold() > 0) {
+            throw new JOhmException(order.getName() + " can not be ordered by while "
+                    + "String attributes may be stored compressed",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        final Map<String, Long> cardinalities = cardinalities();
+        final List<Conjunction> plan = new ArrayList<Conjunction>();
+        for (Conjunction conjunction : conjunctions) {
+            Conjunction planned = conjunction.plan(cardinalities);
+            if (planned != null) {
+                plan.add(planned);
+            }
+        }
+        if (plan.isEmpty() || count == 0) {
+            return new ArrayList<String>();
+        }
+
+        final String prefix = "johm:query:" + UUID.randomUUID() + ":";
+        final List<String> temporaryKeys = new ArrayList<String>();
+        final List<Response<? extends Collection<String>>> result = new ArrayList<Response<? extends Collection<String>>>(1);
+        nest().multi(new TransactionBlock() {
+            public void execute() throws JedisException {
+                String[] resultKeys = new String[plan.size()];
+                for (int iter = 0; iter < resultKeys.length; iter++) {
+                    Conjunction conjunction = plan.get(iter);
+                    if (conjunction.included.size() == 1 && conjunction.excluded.isEmpty()) {
+                        resultKeys[iter] = conjunction.included.get(0);
+                        continue;
+                    }
+                    String temporaryKey = prefix + iter;
+                    temporaryKeys.add(temporaryKey);
+                    resultKeys[iter] = temporaryKey;
+                    if (conjunction.included.size() > 1) {
+                        sinterstore(temporaryKey, conjunction.included
+                                .toArray(new String[conjunction.included.size()]));
+                    }
+                    if (!conjunction.excluded.isEmpty()) {
+                        List<String> keys = new ArrayList<String>();
+                        keys.add(conjunction.included.size() > 1 ? temporaryKey
+                                : conjunction.included.get(0));
+                        keys.addAll(conjunction.excluded);
+                        sdiffstore(temporaryKey, keys.toArray(new String[keys.size()]));
+                    }
+                }
+                String resultKey = resultKeys[0];
+                if (order == null && count < 0) {
+                    result.add(resultKeys.length == 1 ? smembers(resultKey)
+                            : sunion(resultKeys));
+                } else {
+                    if (resultKeys.length > 1) {
+                        resultKey = prefix + "union";
+                        temporaryKeys.add(resultKey);
+                        sunionstore(resultKey, resultKeys);
+                    }
+                    if (order != null && order.isSorted()) {
+                        String scored = prefix + "scored";
+                        temporaryKeys.add(scored);
+                        // score the matches from the sorted index, 0 if unset
+                        ZParams weights = new ZParams().weights(0, 1);
+                        zinterstore(scored, weights, resultKey, metadata
+                                .sortedIndexKeyOf(order));
+                        zunionstore(scored, weights, resultKey, scored);
+                        int end = count < 0 ? -1 : offset + count - 1;
+                        result.add(descending ? zrevrange(scored, offset, end) : zrange(
+                                scored, offset, end));
+                    } else {
+                        result.add(sort(resultKey, sortingParams()));
+                    }
+                }
+                if (!temporaryKeys.isEmpty()) {
+                    del(temporaryKeys.toArray(new String[temporaryKeys.size()]));
+                }
+            }
+        });
+        return new ArrayList<String>(result.get(0).get());
+    }
+
+    private SortingParams sortingParams() {
+        SortingParams params = new SortingParams();
+        if (order == null) {
+            params.nosort();
+        } else {
+            params.by(metadata.getName() + ":*->" + order.getStorageKey());
+            if (!JOhmUtils.Validator.isScorable(order.getType())) {
+                params.alpha();
+            }
+            if (descending) {
+                params.desc();
+            }
+        }
+        if (count >= 0) {
+            params.limit(offset, count);
+        }
+        return params;
+    }
+
+    /**
+     * Read the cardinality of every index set of the query in one pipelined
+     * round trip.
+     */
+    private Map<String, Long> cardinalities() {
+        final Set<String> keys = new LinkedHashSet<String>();
+        for (Conjunction conjunction : conjunctions) {
+            keys.addAll(conjunction.included);
+            keys.addAll(conjunction.excluded);
+        }
+        final Map<String, Response<Long>> replies = new HashMap<String, Response<Long>>();
+        nest().pipelined(new PipelineBlock() {
+            public void execute() {
+                for (String key : keys) {
+                    replies.put(key, scard(key));
+                }
+            }
+        });
+        Map<String, Long> cardinalities = new HashMap<String, Long>();
+        for (Map.Entry<String, Response<Long>> reply : replies.entrySet()) {
+            cardinalities.put(reply.getKey(), reply.getValue().get());
+        }
+        return cardinalities;
+    }
+
+    private Conjunction current() {
+        if (conjunctions.isEmpty()) {
+            conjunctions.add(new Conjunction());
+        }
+        return conjunctions.get(conjunctions.size() - 1);
+    }
+
+    private String indexKey(final String attributeName, final Object attributeValue) {
+        return JOhm.indexNest(clazz, attributeName, attributeValue).key();
+    }
+
+    private Nest<?> nest() {
+        Nest<?> nest = new Nest<Object>();
+        nest.setJedisPool(jedisPool);
+        return nest;
+    }
+
+    /**
+     * Index sets to intersect, minus index sets to exclude.
+     */
+    private static final class Conjunction {
+        private final List<String> included = new ArrayList<String>();
+        private final List<String> excluded = new ArrayList<String>();
+
+        /**
+         * Plan this conjunction: the sets to intersect ordered smallest
+         * first, and the sets to exclude that are not empty.
+         *
+         * @return null if the conjunction can not match anything.
+         */
+        Conjunction plan(final Map<String, Long> cardinalities) {
+            if (included.isEmpty()) {
+                throw new JOhmException("A not criterion must follow a where, "
+                        + "and or or criterion", JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+            }
+            Conjunction planned = new Conjunction();
+            for (String key : included) {
+                if (cardinalities.get(key) == 0) {
+                    return null;
+                }
+                planned.included.add(key);
+            }
+            Collections.sort(planned.included, new Comparator<String>() {
+                public int compare(final String first, final String second) {
+                    return cardinalities.get(first).compareTo(cardinalities.get(second));
+                }
+            });
+            for (String key : excluded) {
+                if (cardinalities.get(key) > 0) {
+                    planned.excluded.add(key);
+                }
+            }
+            return planned;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package redis.clients.johm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * RedisLob is the handle held by a {@link Lob} field. It reads and writes the
+ * value stored under the Class:id:field key of its owner model, with no
+ * local copy, so that a multi-megabyte value need never be held in the heap
+ * at once: {@link #getInputStream()} reads it with one GETRANGE per chunk, and
+ * {@link #getOutputStream()} writes it with one APPEND per chunk.
+ *
+ * Offsets and lengths count bytes. Text is stored as UTF-8.
+ */
+public final class RedisLob {
+    /**
+     * The number of bytes read or written by a stream at a time, unless
+     * stated otherwise.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final Nest<?> nest;
+    private final String fieldName;
+    private final Object owner;
+
+    RedisLob(final Nest<?> nest, final String fieldName, final Object owner) {
+        this.nest = nest;
+        this.fieldName = fieldName;
+        this.owner = owner;
+    }
+
+    /**
+     * The length of the value in bytes, 0 if it is not set.
+     */
+    public long length() {
+        return nest().strlen();
+    }
+
+    /**
+     * The whole value, as text.
+     *
+     * @return null if the value is not set.
+     */
+    public String get() {
+        return nest().get();
+    }
+
+    /**
+     * Replace the whole value with the given text, or delete it if null.
+     */
+    public void set(final String value) {
+        if (value == null) {
+            delete();
+        } else {
+            nest().set(value);
+        }
+    }
+
+    /**
+     * Read at most length bytes of the value from the given offset.
+     *
+     * @return fewer bytes than asked for past the end of the value.
+     */
+    public byte[] read(final long offset, final int length) {
+        if (offset < 0 || length < 0) {
+            throw new JOhmException("Offset and length can not be negative",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        // Redis values are at most 512MB, so offsets always fit an int
+        if (length == 0 || offset > Integer.MAX_VALUE) {
+            return new byte[0];
+        }
+        long end = Math.min(offset + length - 1, Integer.MAX_VALUE);
+        byte[] bytes = nest().substr((int) offset, (int) end);
+        return bytes == null ? new byte[0] : bytes;
+    }
+
+    /**
+     * Overwrite the value from the given offset with the given bytes,
+     * padding it with zero bytes if it is shorter than offset.
+     *
+     * @return the length of the value afterwards.
+     */
+    public long write(final long offset, final byte[] bytes) {
+        if (offset < 0) {
+            throw new JOhmException("Offset can not be negative",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+        return nest().setrange(offset, bytes);
+    }
+
+    /**
+     * Add the given bytes at the end of the value.
+     *
+     * @return the length of the value afterwards.
+     */
+    public long append(final byte[] bytes) {
+        return nest().append(bytes);
+    }
+
+    public void delete() {
+        nest().del();
+    }
+
+    public InputStream getInputStream() {
+        return getInputStream(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * A stream reading the value from its start, chunkSize bytes per
+     * GETRANGE.
+     */
+    public InputStream getInputStream(final int chunkSize) {
+        checkChunkSize(chunkSize);
+        return new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int position;
+            private long offset;
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+                return chunk[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int from, final int length)
+                    throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int read = Math.min(length, chunk.length - position);
+                System.arraycopy(chunk, position, bytes, from, read);
+                position += read;
+                return read;
+            }
+
+            private boolean fill() {
+                if (position < chunk.length) {
+                    return true;
+                }
+                if (ended) {
+                    return false;
+                }
+                chunk = RedisLob.this.read(offset, chunkSize);
+                position = 0;
+                offset += chunk.length;
+                ended = chunk.length < chunkSize;
+                return chunk.length > 0;
+            }
+        };
+    }
+
+    public OutputStream getOutputStream() {
+        return getOutputStream(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * A stream adding to the end of the value, chunkSize bytes per APPEND.
+     * Bytes still buffered are appended on flush and close. Delete the value
+     * first to replace it.
+     */
+    public OutputStream getOutputStream(final int chunkSize) {
+        checkChunkSize(chunkSize);
+        return new OutputStream() {
+            private final byte[] chunk = new byte[chunkSize];
+            private int length;
+
+            @Override
+            public void write(final int b) throws IOException {
+                if (length == chunk.length) {
+                    flush();
+                }
+                chunk[length++] = (byte) b;
+            }
+
+            @Override
+            public void write(final byte[] bytes, final int from, final int count)
+                    throws IOException {
+                for (int written = 0; written < count;) {
+                    if (length == chunk.length) {
+                        flush();
+                    }
+                    int copied = Math.min(count - written, chunk.length - length);
+                    System.arraycopy(bytes, from + written, chunk, length, copied);
+                    length += copied;
+                    written += copied;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (length > 0) {
+                    byte[] bytes = new byte[length];
+                    System.arraycopy(chunk, 0, bytes, 0, length);
+                    append(bytes);
+                    length = 0;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private static void checkChunkSize(final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new JOhmException("Chunk size must be positive",
+                    JOhmExceptionMeta.ILLEGAL_ARGUMENT_EXCEPTION);
+        }
+    }
+
+    private Nest<?> nest() {
+        return nest.cat(JOhmUtils.getId(owner)).cat(fieldName);
+    }
+}
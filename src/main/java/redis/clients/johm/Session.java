@@ -0,0 +1,152 @@
+package redis.clients.johm;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * A Session is a unit of work bound to the current thread. While it is open,
+ * every Redis command JOhm issues on this thread goes through a single pooled
+ * connection, borrowed on first use and returned when the session is closed,
+ * instead of one pool checkout per command. A connection a command fails on is
+ * discarded at once rather than returned.
+ *
+ * Every JOhm operation runs in a session of its own; opening one explicitly
+ * widens it to a user-defined scope. Sessions nest: opening a session while
+ * one is open on the same thread joins it, and only the outermost close()
+ * returns the connection. A session must be closed, in a finally block or with
+ * try-with-resources, by the thread that opened it.
+ *
+ * A session is also an identity map: a model loaded or saved while it is open
+ * is kept by class and id, and loading it again in the same session, directly
+ * or through a reference or a collection, returns the same instance without
+ * reading Redis. Every model loaded in a session stays reachable until the
+ * session is closed, so an explicit session should not span a scan over a
+ * large set of models.
+ */
+public final class Session implements Closeable {
+    private static final ThreadLocal<Session> current = new ThreadLocal<Session>();
+
+    private final JedisPool jedisPool;
+    private Jedis jedis;
+    private int depth;
+    private final Map<String, Object> models = new HashMap<String, Object>();
+
+    private Session(final JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    /**
+     * Open a session on the current thread, or join the one already open.
+     */
+    static Session open(final JedisPool jedisPool) {
+        Session session = current.get();
+        if (session == null) {
+            session = new Session(jedisPool);
+            current.set(session);
+        }
+        session.depth++;
+        return session;
+    }
+
+    /**
+     * Leave this session. The connection goes back to the pool when the
+     * outermost scope is closed.
+     */
+    public void close() {
+        if (depth == 0) {
+            return;
+        }
+        if (--depth == 0) {
+            current.remove();
+            if (jedis != null) {
+                jedisPool.returnResource(jedis);
+                jedis = null;
+            }
+        }
+    }
+
+    /**
+     * The connection bound to the current thread's session for the given pool,
+     * borrowing it if the session has not used one yet.
+     *
+     * @return null if no session is open on this thread for that pool.
+     */
+    static Jedis connection(final JedisPool jedisPool) {
+        Session session = current.get();
+        if (session == null || session.jedisPool != jedisPool) {
+            return null;
+        }
+        if (session.jedis == null) {
+            session.jedis = jedisPool.getResource();
+        }
+        return session.jedis;
+    }
+
+    /**
+     * The session open on the current thread for the given pool.
+     *
+     * @return null if there is none.
+     */
+    static Session current(final JedisPool jedisPool) {
+        Session session = current.get();
+        if (session == null || session.jedisPool != jedisPool) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * The model instance kept in this session under the given "Class:id"
+     * key.
+     *
+     * @return null if this session holds no such model.
+     */
+    Object lookup(final String key) {
+        return models.get(key);
+    }
+
+    /**
+     * Keep a model instance in this session under its "Class:id" key.
+     */
+    void register(final String key, final Object model) {
+        models.put(key, model);
+    }
+
+    /**
+     * Forget the model kept under the given "Class:id" key, once it was
+     * deleted or changed in Redis behind its instance.
+     */
+    void evict(final String key) {
+        models.remove(key);
+    }
+
+    /**
+     * Give the connection a command failed on back to the pool as broken, if
+     * it is the one held by the current thread's session. The session borrows
+     * a fresh connection on its next command.
+     *
+     * @return false if the connection is not bound to a session.
+     */
+    static boolean discard(final Jedis jedis) {
+        Session session = current.get();
+        if (session == null || session.jedis != jedis) {
+            return false;
+        }
+        session.jedis = null;
+        session.jedisPool.returnBrokenResource(jedis);
+        return true;
+    }
+
+    /**
+     * Check whether the given connection is held by the current thread's
+     * session, in which case it must not be returned to the pool yet.
+     */
+    static boolean isBound(final Jedis jedis) {
+        Session session = current.get();
+        return session != null && session.jedis == jedis;
+    }
+}
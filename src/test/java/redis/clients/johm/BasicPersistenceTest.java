@@ -1,16 +1,27 @@
 package redis.clients.johm;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Test;
 
+import redis.clients.jedis.Jedis;
 import redis.clients.johm.models.Book;
 import redis.clients.johm.models.Country;
+import redis.clients.johm.models.Document;
 import redis.clients.johm.models.FaultyModel;
 import redis.clients.johm.models.Inhabitant;
 import redis.clients.johm.models.Item;
 import redis.clients.johm.models.TestingClassWithUnvalidId;
 import redis.clients.johm.models.Town;
+import redis.clients.johm.models.Traveller;
 import redis.clients.johm.models.User;
 
 public class BasicPersistenceTest extends JOhmTestBase {
@@ -153,6 +164,131 @@ public class BasicPersistenceTest extends JOhmTestBase {
         assertNull(JOhm.get(User.class, id));
     }
 
+    @Test
+    public void updateOnlyWritesChangedFields() {
+        User user = new User();
+        user.setName("foo");
+        user.setAge(3);
+        JOhm.save(user);
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            jedis.hset("User:" + user.getId(), "untouched", "bar");
+            user.setName(null);
+            user.setAge(4);
+            JOhm.save(user);
+            assertEquals("bar", jedis.hget("User:" + user.getId(), "untouched"));
+            assertFalse(jedis.hexists("User:" + user.getId(), "name"));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+
+        User savedUser = JOhm.get(User.class, user.getId());
+        assertNull(savedUser.getName());
+        assertEquals(4, savedUser.getAge());
+        assertEquals(0, JOhm.find(User.class, "name", "foo").size());
+        assertEquals(0, JOhm.find(User.class, "age", 3).size());
+        assertEquals(1, JOhm.find(User.class, "age", 4).size());
+    }
+
+    @Test
+    public void updateNamedFields() {
+        User user = new User();
+        user.setName("foo");
+        user.setAge(3);
+        JOhm.save(user);
+
+        user.setName("bar");
+        user.setAge(4);
+        assertTrue(JOhm.update(user, "age"));
+        User savedUser = JOhm.get(User.class, user.getId());
+        assertEquals("foo", savedUser.getName());
+        assertEquals(4, savedUser.getAge());
+        assertEquals(0, JOhm.find(User.class, "age", 3).size());
+        assertEquals(1, JOhm.find(User.class, "age", 4).size());
+
+        assertTrue(JOhm.update(user));
+        savedUser = JOhm.get(User.class, user.getId());
+        assertEquals("bar", savedUser.getName());
+        assertEquals(1, JOhm.find(User.class, "name", "bar").size());
+        assertEquals(0, JOhm.find(User.class, "name", "foo").size());
+    }
+
+    @Test
+    public void updateRequiresPersistedModel() {
+        Town paris = new Town();
+        paris.setName("Paris");
+        JOhm.save(paris);
+        JOhm.delete(Town.class, paris.getTownId());
+        assertFalse(JOhm.update(paris, "name"));
+        assertNull(JOhm.get(Town.class, paris.getTownId()));
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotUpdateUnknownField() {
+        User user = new User();
+        JOhm.save(user);
+        JOhm.update(user, "room");
+    }
+
+    @Test
+    public void increment() {
+        User user = new User();
+        user.setName("foo");
+        user.setAge(3);
+        user.setSalary(1.5f);
+        JOhm.save(user);
+
+        assertEquals(Long.valueOf(5), JOhm.increment(User.class, user.getId(), "age", 2));
+        assertEquals(Double.valueOf(2.0), JOhm.increment(User.class, user.getId(),
+                "salary", 0.5));
+        User savedUser = JOhm.get(User.class, user.getId());
+        assertEquals(5, savedUser.getAge());
+        assertEquals(2.0f, savedUser.getSalary(), 0);
+        assertEquals("foo", savedUser.getName());
+        assertEquals(0, JOhm.find(User.class, "age", 3).size());
+        assertEquals(1, JOhm.find(User.class, "age", 5).size());
+
+        assertNull(JOhm.increment(User.class, 1000, "age", 1));
+        assertNull(JOhm.get(User.class, 1000));
+    }
+
+    @Test
+    public void shouldIndexIncrementedValuesAsJavaRendersThem() {
+        Document document = new Document();
+        document.setScore(9999999.5);
+        document.setRevision((short) 32766);
+        JOhm.save(document);
+
+        assertEquals(Double.valueOf(10000000.5), JOhm.increment(Document.class,
+                document.getId(), "score", 1.0));
+        assertEquals(1, JOhm.find(Document.class, "score", 10000000.5).size());
+        assertEquals(0, JOhm.find(Document.class, "score", 9999999.5).size());
+        assertEquals(10000000.5, JOhm.<Document> get(Document.class, document.getId())
+                .getScore(), 0);
+        assertEquals(Double.valueOf(9.765625E-4), JOhm.increment(Document.class,
+                document.getId(), "score", -10000000.4990234375));
+        assertEquals(1, JOhm.find(Document.class, "score", 9.765625E-4).size());
+
+        assertEquals(Long.valueOf(32767), JOhm.increment(Document.class, document.getId(),
+                "revision", 1));
+        try {
+            JOhm.increment(Document.class, document.getId(), "revision", 1);
+            fail("A short cannot go past 32767");
+        } catch (JOhmException e) {
+            // expected
+        }
+        assertEquals(32767, JOhm.<Document> get(Document.class, document.getId())
+                .getRevision());
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotIncrementNonNumericAttribute() {
+        User user = new User();
+        JOhm.save(user);
+        JOhm.increment(User.class, user.getId(), "name", 1);
+    }
+
     @Test
     public void shouldNotPersistFieldsWithoutAttributeAnnotation() {
         User user = new User();
@@ -245,6 +381,34 @@ public class BasicPersistenceTest extends JOhmTestBase {
         assertEquals(somewhere.getName(), savedUser.getCountry().getName());
     }
 
+    @Test
+    public void shouldHandleLazyReferences() {
+        Country country = new Country();
+        country.setName("Somewhere");
+        JOhm.save(country);
+
+        Traveller traveller = new Traveller();
+        traveller.setName("foo");
+        traveller.setHomeland(LazyReference.to(country));
+        JOhm.save(traveller);
+
+        Traveller savedTraveller = JOhm.get(Traveller.class, traveller.getId());
+        LazyReference<Country> homeland = savedTraveller.getHomeland();
+        assertFalse(homeland.isLoaded());
+        assertEquals(String.valueOf(country.getId()), homeland.getId());
+
+        // an unloaded reference is not saved over the referenced model
+        JOhm.save(savedTraveller, true);
+        assertFalse(homeland.isLoaded());
+        assertEquals("Somewhere", homeland.get().getName());
+        assertTrue(homeland.isLoaded());
+
+        List<Traveller> travellers = JOhm.find(Traveller.class, "homeland",
+                country.getId());
+        assertEquals(1, travellers.size());
+        assertEquals(traveller.getId(), travellers.get(0).getId());
+    }
+
     @Test
     public void getAll() {
         User user = new User();
@@ -258,6 +422,65 @@ public class BasicPersistenceTest extends JOhmTestBase {
         assertEquals(2, users.size());
     }
 
+    @Test
+    public void getAllByIds() {
+        JOhm.setBatchSize(2);
+        try {
+            Country country = new Country();
+            country.setName("Somewhere");
+            JOhm.save(country);
+
+            User user1 = new User();
+            user1.setName("foo");
+            user1.setCountry(country);
+            JOhm.save(user1);
+            User user2 = new User();
+            user2.setName("foo1");
+            JOhm.save(user2);
+            User user3 = new User();
+            user3.setName("foo2");
+            user3.setCountry(country);
+            JOhm.save(user3);
+
+            List<User> users = JOhm.getAll(User.class, Arrays.asList(
+                    user3.getId().toString(), "0", user1.getId().toString(),
+                    user2.getId().toString()));
+            assertEquals(4, users.size());
+            assertEquals(user3.getId(), users.get(0).getId());
+            assertNull(users.get(1));
+            assertEquals(user1.getId(), users.get(2).getId());
+            assertEquals(user2.getId(), users.get(3).getId());
+            assertEquals("Somewhere", users.get(0).getCountry().getName());
+            assertEquals("Somewhere", users.get(2).getCountry().getName());
+            assertNull(users.get(3).getCountry());
+        } finally {
+            JOhm.setBatchSize(500);
+        }
+    }
+
+    @Test
+    public void scanAll() {
+        Set<Long> ids = new HashSet<Long>();
+        for (int n = 0; n < 25; n++) {
+            User user = new User();
+            user.setName("foo" + n);
+            JOhm.save(user);
+            ids.add(user.getId());
+        }
+
+        Set<Long> scanned = new HashSet<Long>();
+        for (User user : JOhm.<User> scanAll(User.class, 7)) {
+            assertTrue(ids.contains(user.getId()));
+            scanned.add(user.getId());
+        }
+        assertEquals(ids, scanned);
+    }
+
+    @Test(expected = JOhmException.class)
+    public void scanAllNotSupported() {
+        JOhm.scanAll(Book.class, 10);
+    }
+
     @Test(expected = JOhmException.class)
     public void getAllNotSupported() {
         Book book = new Book();
@@ -284,4 +507,283 @@ public class BasicPersistenceTest extends JOhmTestBase {
         savedBook = JOhm.get(Book.class, book.getId());
         assertNull(savedBook);
     }
+
+    @Test
+    public void shouldCompressLongStrings() {
+        StringBuilder name = new StringBuilder();
+        for (int iter = 0; iter < 100; iter++) {
+            name.append("a rather repetitive name ");
+        }
+        int threshold = JOhm.getCompressionThreshold();
+        JOhm.setCompressionThreshold(1024);
+        try {
+            User user = new User();
+            user.setName(name.toString());
+            JOhm.save(user);
+
+            Jedis jedis = jedisPool.getResource();
+            try {
+                assertTrue(jedis.hget("User:" + user.getId(), "name").length() < 200);
+            } finally {
+                jedisPool.returnResource(jedis);
+            }
+            User savedUser = JOhm.get(User.class, user.getId());
+            assertEquals(name.toString(), savedUser.getName());
+            assertEquals(1, JOhm.find(User.class, "name", name.toString()).size());
+        } finally {
+            JOhm.setCompressionThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void shouldReindexCompressedValuesOnUpdate() {
+        StringBuilder name = new StringBuilder();
+        for (int iter = 0; iter < 100; iter++) {
+            name.append("a rather repetitive name ");
+        }
+        int threshold = JOhm.getCompressionThreshold();
+        JOhm.setCompressionThreshold(1024);
+        try {
+            User user = new User();
+            user.setName(name.toString());
+            user.setAge(30);
+            JOhm.save(user);
+
+            user.setName("short");
+            user.setAge(31);
+            JOhm.save(user);
+            assertEquals(0, JOhm.find(User.class, "name", name.toString()).size());
+            assertEquals(1, JOhm.find(User.class, "name", "short").size());
+            assertEquals(0, JOhm.find(User.class, "age", 30).size());
+            assertEquals(1, JOhm.find(User.class, "age", 31).size());
+
+            user.setName(name.toString());
+            JOhm.save(user);
+            assertTrue(JOhm.delete(User.class, user.getId(), true, false));
+            assertEquals(0, JOhm.find(User.class, "name", name.toString()).size());
+            assertEquals(0, JOhm.find(User.class, "age", 31).size());
+        } finally {
+            JOhm.setCompressionThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void existsAndCountAllWithoutLoading() {
+        User user = new User();
+        JOhm.save(user);
+        User other = new User();
+        JOhm.save(other);
+        assertTrue(JOhm.exists(User.class, user.getId()));
+        assertFalse(JOhm.exists(User.class, other.getId() + 1));
+        assertEquals(2, JOhm.countAll(User.class));
+
+        List<Boolean> exists = JOhm.existsAll(User.class, Arrays.asList(String
+                .valueOf(other.getId() + 1), String.valueOf(user.getId())));
+        assertEquals(Arrays.asList(false, true), exists);
+
+        JOhm.delete(User.class, user.getId());
+        assertFalse(JOhm.exists(User.class, user.getId()));
+        assertEquals(1, JOhm.countAll(User.class));
+    }
+
+    @Test
+    public void shouldLoadOnlyProjectedFields() {
+        Country country = new Country();
+        country.setName("Somewhere");
+        JOhm.save(country);
+        Item item = new Item();
+        item.setName("Foo");
+        JOhm.save(item);
+
+        User user = new User();
+        user.setName("foo");
+        user.setAge(30);
+        user.setSalary(1000f);
+        user.setCountry(country);
+        user.setThreeLatestPurchases(new Item[] { item, null, null });
+        JOhm.save(user);
+
+        User partial = JOhm.get(User.class, user.getId(), "name", "age");
+        assertEquals(user.getId(), partial.getId());
+        assertEquals("foo", partial.getName());
+        assertEquals(30, partial.getAge());
+        assertEquals(0f, partial.getSalary(), 0);
+        assertNull(partial.getCountry());
+        assertNull(partial.getThreeLatestPurchases());
+
+        partial = JOhm.get(User.class, user.getId(), "country", "threeLatestPurchases");
+        assertNull(partial.getName());
+        assertEquals("Somewhere", partial.getCountry().getName());
+        assertEquals("Foo", partial.getThreeLatestPurchases()[0].getName());
+
+        // a model without any of the projected values is still found
+        User nameless = new User();
+        JOhm.save(nameless);
+        assertNotNull(JOhm.get(User.class, nameless.getId(), "name"));
+        assertNull(JOhm.get(User.class, nameless.getId() + 1, "name"));
+
+        List<User> users = JOhm.find(User.class, "name", "foo", 0, "age");
+        assertEquals(1, users.size());
+        assertNull(users.get(0).getName());
+        assertEquals(30, users.get(0).getAge());
+
+        // the whole model is still loaded by get
+        assertEquals(1000f, JOhm.<User> get(User.class, user.getId()).getSalary(), 0);
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotProjectUnknownField() {
+        User user = new User();
+        JOhm.save(user);
+        JOhm.get(User.class, user.getId(), "unknown");
+    }
+
+    @Test
+    public void shouldStoreLobsInTheirOwnKey() throws IOException {
+        Document document = new Document();
+        document.setTitle("foo");
+        JOhm.save(document);
+        document.getBody().set("Hello");
+        assertEquals(11, document.getBody().append(" world".getBytes("UTF-8")));
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            assertFalse(jedis.hexists("Document:" + document.getId(), "body"));
+            assertEquals("Hello world", jedis.get("Document:" + document.getId() + ":body"));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+
+        Document savedDocument = JOhm.get(Document.class, document.getId());
+        RedisLob body = savedDocument.getBody();
+        assertEquals("Hello world", body.get());
+        assertEquals(11, body.length());
+        assertEquals("world", new String(body.read(6, 100), "UTF-8"));
+        body.write(0, "J".getBytes("UTF-8"));
+        assertEquals("Jello world", body.get());
+
+        // stream a value much larger than a chunk through both ends
+        byte[] large = new byte[100000];
+        for (int iter = 0; iter < large.length; iter++) {
+            large[iter] = (byte) iter;
+        }
+        body.delete();
+        OutputStream out = body.getOutputStream(4096);
+        out.write(large, 0, 50000);
+        for (int iter = 50000; iter < large.length; iter++) {
+            out.write(large[iter]);
+        }
+        out.close();
+        assertEquals(large.length, body.length());
+
+        InputStream in = body.getInputStream(3000);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+            read.write(buffer, 0, length);
+        }
+        assertTrue(Arrays.equals(large, read.toByteArray()));
+
+        JOhm.delete(Document.class, document.getId());
+        assertEquals(0, body.length());
+    }
+
+    @Test
+    public void shouldWriteThroughScriptsReloadedAfterFlush() {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            jedis.scriptFlush();
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        Item item = new Item();
+        item.setName("Foo");
+        JOhm.save(item);
+        User user = new User();
+        user.setName("foo");
+        user.setAge(30);
+        user.setThreeLatestPurchases(new Item[] { item, null, null });
+        JOhm.save(user);
+        user.setName("bar");
+        JOhm.save(user);
+        assertEquals(0, JOhm.count(User.class, "name", "foo"));
+        assertEquals(1, JOhm.count(User.class, "name", "bar"));
+
+        assertTrue(JOhm.delete(User.class, user.getId()));
+        assertFalse(JOhm.delete(User.class, user.getId()));
+        jedis = jedisPool.getResource();
+        try {
+            assertFalse(jedis.exists("User:" + user.getId() + ":threeLatestPurchases"));
+            assertEquals(0, jedis.zcard("User:_sorted:age").longValue());
+            assertEquals(0, jedis.scard("User:threeLatestPurchases:" + item.getId())
+                    .longValue());
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        assertEquals(0, JOhm.count(User.class, "name", "bar"));
+        assertEquals(0, JOhm.countAll(User.class));
+    }
+
+    @Test
+    public void shouldWriteLargeArraysInChunks() {
+        String[] tags = new String[20000];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = "tag" + i;
+        }
+        Document document = new Document();
+        document.setTags(tags);
+        JOhm.save(document);
+
+        Document savedDocument = JOhm.get(Document.class, document.getId());
+        assertEquals(20000, savedDocument.getTags().length);
+        assertEquals("tag19999", savedDocument.getTags()[19999]);
+        assertEquals(1, JOhm.find(Document.class, "tags", "tag12345").size());
+
+        tags[0] = "first";
+        JOhm.save(document);
+        assertEquals(0, JOhm.find(Document.class, "tags", "tag0").size());
+        assertEquals(1, JOhm.find(Document.class, "tags", "first").size());
+        assertTrue(JOhm.delete(Document.class, document.getId()));
+        assertEquals(0, JOhm.find(Document.class, "tags", "tag12345").size());
+    }
+
+    @Test
+    public void shouldAllocateIdsByBlocks() throws InterruptedException {
+        JOhm.setIdBlockSize(10);
+        try {
+            User first = new User();
+            JOhm.save(first);
+            User second = new User();
+            JOhm.save(second);
+            assertEquals(first.getId() + 1, second.getId().longValue());
+            Jedis jedis = jedisPool.getResource();
+            try {
+                assertEquals("10", jedis.get("User:id"));
+            } finally {
+                jedisPool.returnResource(jedis);
+            }
+
+            final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+            Thread[] threads = new Thread[4];
+            for (int iter = 0; iter < threads.length; iter++) {
+                threads[iter] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int saved = 0; saved < 25; saved++) {
+                            Item item = new Item();
+                            JOhm.save(item);
+                            ids.add(item.getId());
+                        }
+                    }
+                };
+                threads[iter].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(100, ids.size());
+        } finally {
+            JOhm.setIdBlockSize(1);
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package redis.clients.johm;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.johm.models.Country;
+import redis.clients.johm.models.Measurement;
+import redis.clients.johm.models.Measurement.Unit;
+
+public class BinaryEncodingTest extends JOhmTestBase {
+    @Test
+    public void shouldRoundTripBinaryAttributes() throws UnsupportedEncodingException {
+        Country country = new Country();
+        country.setName("\u00cdsland");
+        JOhm.save(country);
+        Date takenAt = new Date();
+        Measurement measurement = new Measurement();
+        measurement.setCount(-3);
+        measurement.setTotal(Long.MAX_VALUE);
+        measurement.setValue(0.1);
+        measurement.setRatio(2.5f);
+        measurement.setValid(true);
+        measurement.setTakenAt(takenAt);
+        measurement.setUnit(Unit.KILOGRAM);
+        measurement.setLabel("na\u00efve \u2603");
+        measurement.setCountry(country);
+        JOhm.save(measurement);
+
+        Measurement saved = JOhm.get(Measurement.class, measurement.getId());
+        assertEquals(-3, saved.getCount());
+        assertEquals(Long.MAX_VALUE, saved.getTotal());
+        assertEquals(0.1, saved.getValue(), 0);
+        assertEquals(Float.valueOf(2.5f), saved.getRatio());
+        assertTrue(saved.isValid());
+        assertEquals(takenAt, saved.getTakenAt());
+        assertEquals(Unit.KILOGRAM, saved.getUnit());
+        assertEquals("na\u00efve \u2603", saved.getLabel());
+        assertEquals("\u00cdsland", saved.getCountry().getName());
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            byte[] key = ("Measurement:" + measurement.getId()).getBytes();
+            assertArrayEquals(new byte[] { 5 }, jedis.hget(key, "count".getBytes()));
+            assertEquals(1, jedis.hget(key, "valid".getBytes()).length);
+            assertEquals(8, jedis.hget(key, "value".getBytes()).length);
+            assertEquals(1, jedis.hget(key, "unit".getBytes()).length);
+            assertEquals("na\u00efve \u2603", new String(jedis.hget(key, "label".getBytes()), "UTF-8"));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    @Test
+    public void shouldFindAndUpdateBinaryModels() {
+        Measurement measurement = new Measurement();
+        measurement.setCount(7);
+        measurement.setUnit(Unit.TONNE);
+        JOhm.save(measurement);
+        Measurement other = new Measurement();
+        other.setCount(8);
+        other.setUnit(Unit.GRAM);
+        JOhm.save(other);
+
+        List<Measurement> found = JOhm.find(Measurement.class, "unit", Unit.TONNE);
+        assertEquals(1, found.size());
+        assertEquals(measurement.getId(), found.get(0).getId());
+        assertEquals(1, JOhm.find(Measurement.class, "count", 8).size());
+
+        measurement.setCount(8);
+        measurement.setUnit(Unit.GRAM);
+        JOhm.save(measurement);
+        assertEquals(0, JOhm.find(Measurement.class, "unit", Unit.TONNE).size());
+        assertEquals(2, JOhm.find(Measurement.class, "unit", Unit.GRAM).size());
+        assertEquals(2, JOhm.find(Measurement.class, "count", 8).size());
+        assertEquals(Unit.GRAM, JOhm.<Measurement> get(Measurement.class,
+                measurement.getId()).getUnit());
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotIncrementBinaryAttribute() {
+        Measurement measurement = new Measurement();
+        JOhm.save(measurement);
+        JOhm.increment(Measurement.class, measurement.getId(), "total", 1L);
+    }
+}
@@ -0,0 +1,74 @@
+package redis.clients.johm;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.johm.models.Country;
+import redis.clients.johm.models.Reading;
+
+public class BlobLayoutTest extends JOhmTestBase {
+    @Test
+    public void shouldStoreModelAsSingleValue() {
+        Country country = new Country();
+        country.setName("\u00d6sterreich");
+        JOhm.save(country);
+        Reading reading = new Reading();
+        reading.setName("gr\u00f6\u00dfe");
+        reading.setValue(42);
+        reading.setCountry(country);
+        JOhm.save(reading);
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            assertEquals("string", jedis.type("Reading:" + reading.getId()));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        Reading saved = JOhm.get(Reading.class, reading.getId());
+        assertEquals("gr\u00f6\u00dfe", saved.getName());
+        assertEquals(42, saved.getValue());
+        assertEquals("\u00d6sterreich", saved.getCountry().getName());
+    }
+
+    @Test
+    public void shouldUpdateAndFindBlobModels() {
+        for (int iter = 0; iter < 5; iter++) {
+            Reading reading = new Reading();
+            reading.setName(iter % 2 == 0 ? "even" : "odd");
+            reading.setValue(iter);
+            JOhm.save(reading);
+        }
+        Set<Reading> readings = JOhm.getAll(Reading.class);
+        assertEquals(5, readings.size());
+        assertEquals(3, JOhm.find(Reading.class, "name", "even").size());
+
+        List<Reading> odd = JOhm.find(Reading.class, "name", "odd");
+        Reading reading = odd.get(0);
+        reading.setName("even");
+        JOhm.save(reading);
+        assertEquals(4, JOhm.find(Reading.class, "name", "even").size());
+        Reading saved = JOhm.get(Reading.class, reading.getId());
+        assertEquals("even", saved.getName());
+        assertEquals(reading.getValue(), saved.getValue());
+
+        reading.setName(null);
+        reading.setValue(7);
+        assertTrue(JOhm.update(reading, "name"));
+        saved = JOhm.get(Reading.class, reading.getId());
+        assertNull(saved.getName());
+        assertEquals(3, JOhm.find(Reading.class, "name", "even").size());
+
+        assertTrue(JOhm.delete(Reading.class, reading.getId()));
+        assertNull(JOhm.get(Reading.class, reading.getId()));
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotIncrementBlobAttribute() {
+        Reading reading = new Reading();
+        JOhm.save(reading);
+        JOhm.increment(Reading.class, reading.getId(), "value", 1L);
+    }
+}
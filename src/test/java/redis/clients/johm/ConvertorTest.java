@@ -248,4 +248,151 @@ public class ConvertorTest extends Assert {
         converted = converter.getAsObject(Collection.class, value);
         assertNull(converted);
     }
+
+    static class Primitives {
+        int anInt;
+        long aLong;
+        double aDouble;
+        boolean aBoolean;
+        char aChar;
+        Date aDate;
+        String aString;
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        CodecConverter codecConverter = (CodecConverter) converter;
+        Primitives primitives = new Primitives();
+        String[][] values = { { "anInt", "-10" }, { "aLong", "1311459610064" },
+                { "aDouble", "10.5" }, { "aBoolean", "true" }, { "aChar", "J" },
+                { "aDate", "1311459610064" } };
+        for (String[] value : values) {
+            FieldCodec codec = codecConverter.getCodec(Primitives.class
+                    .getDeclaredField(value[0]));
+            codec.decode(primitives, value[1]);
+            assertEquals(value[1], codec.encode(primitives));
+        }
+        assertEquals(-10, primitives.anInt);
+        assertEquals(1311459610064L, primitives.aLong);
+        assertEquals(10.5d, primitives.aDouble, 0);
+        assertTrue(primitives.aBoolean);
+        assertEquals('J', primitives.aChar);
+        assertEquals(new Date(1311459610064L), primitives.aDate);
+
+        FieldCodec codec = codecConverter.getCodec(Primitives.class
+                .getDeclaredField("anInt"));
+        codec.decode(primitives, null);
+        assertEquals(0, primitives.anInt);
+        codec = codecConverter.getCodec(Primitives.class.getDeclaredField("aDate"));
+        codec.decode(primitives, null);
+        assertNull(codec.encode(primitives));
+    }
+
+    static class Wrappers {
+        Integer anInteger;
+        Long aLong;
+        Double aDouble;
+        Float aFloat;
+        Boolean aBoolean;
+        Short aShort;
+        Byte aByte;
+        Character aCharacter;
+        BigDecimal aBigDecimal;
+        BigInteger aBigInteger;
+        Date aDate;
+        TestEnum anEnum;
+    }
+
+    @Test
+    public void testObjectCodecs() throws Exception {
+        CodecConverter codecConverter = (CodecConverter) converter;
+        Wrappers wrappers = new Wrappers();
+        String[][] values = { { "anInteger", "-10" }, { "aLong", "1311459610064" },
+                { "aDouble", "10.5" }, { "aFloat", "1.5" }, { "aBoolean", "true" },
+                { "aShort", "-300" }, { "aByte", "50" }, { "aCharacter", "J" },
+                { "aBigDecimal", "123.456" }, { "aBigInteger", "12345678901234567890" },
+                { "aDate", "1311459610064" }, { "anEnum", "TEST2" } };
+        for (String[] value : values) {
+            FieldCodec codec = codecConverter.getCodec(Wrappers.class
+                    .getDeclaredField(value[0]));
+            codec.decode(wrappers, value[1]);
+            assertEquals(value[1], codec.encode(wrappers));
+        }
+        assertEquals(Integer.valueOf(-10), wrappers.anInteger);
+        assertEquals(Long.valueOf(1311459610064L), wrappers.aLong);
+        assertEquals(Double.valueOf(10.5), wrappers.aDouble);
+        assertEquals(Float.valueOf(1.5f), wrappers.aFloat);
+        assertEquals(Boolean.TRUE, wrappers.aBoolean);
+        assertEquals(Short.valueOf((short) -300), wrappers.aShort);
+        assertEquals(Byte.valueOf((byte) 50), wrappers.aByte);
+        assertEquals(Character.valueOf('J'), wrappers.aCharacter);
+        assertEquals(new BigDecimal("123.456"), wrappers.aBigDecimal);
+        assertEquals(new BigInteger("12345678901234567890"), wrappers.aBigInteger);
+        assertEquals(new Date(1311459610064L), wrappers.aDate);
+        assertSame(TestEnum.TEST2, wrappers.anEnum);
+
+        FieldCodec codec = codecConverter.getCodec(Wrappers.class.getDeclaredField("aLong"));
+        codec.decode(wrappers, null);
+        assertNull(wrappers.aLong);
+        assertNull(codec.encode(wrappers));
+        codec = codecConverter.getCodec(Wrappers.class.getDeclaredField("anInteger"));
+        codec.decode(wrappers, null);
+        assertEquals(Integer.valueOf(0), wrappers.anInteger);
+        codec = codecConverter.getCodec(Wrappers.class.getDeclaredField("anEnum"));
+        codec.decode(wrappers, null);
+        assertNull(wrappers.anEnum);
+        try {
+            codec.decode(wrappers, "TEST3");
+            fail("TEST3 is not a constant of TestEnum");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStringCompression() throws Exception {
+        FieldCodec codec = ((CodecConverter) converter).getCodec(Primitives.class
+                .getDeclaredField("aString"));
+        Primitives primitives = new Primitives();
+        StringBuilder json = new StringBuilder("[");
+        for (int iter = 0; iter < 200; iter++) {
+            json.append("{\"id\":").append(iter).append(",\"name\":\"\u00fc\"},");
+        }
+        primitives.aString = json.toString();
+        String marked = "\u0000marked";
+        int threshold = JOhm.getCompressionThreshold();
+        JOhm.setCompressionThreshold(64);
+        try {
+            String compressed = codec.encode(primitives);
+            assertEquals('\u0000', compressed.charAt(0));
+            assertTrue(compressed.length() < json.length() / 4);
+            codec.decode(primitives, compressed);
+            assertEquals(json.toString(), primitives.aString);
+
+            primitives.aString = marked;
+            assertFalse(marked.equals(codec.encode(primitives)));
+            codec.decode(primitives, codec.encode(primitives));
+            assertEquals(marked, primitives.aString);
+        } finally {
+            JOhm.setCompressionThreshold(threshold);
+        }
+
+        // stored before compression was enabled
+        codec.decode(primitives, json.toString());
+        assertEquals(json.toString(), primitives.aString);
+
+        String[] escaped = { marked, "\u0000Rx", "\u0000Dx" };
+        for (int limit : new int[] { 0, 64 }) {
+            JOhm.setCompressionThreshold(limit);
+            try {
+                for (String value : escaped) {
+                    primitives.aString = value;
+                    codec.decode(primitives, codec.encode(primitives));
+                    assertEquals(value, primitives.aString);
+                }
+            } finally {
+                JOhm.setCompressionThreshold(threshold);
+            }
+        }
+    }
 }
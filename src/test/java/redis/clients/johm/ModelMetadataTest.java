@@ -0,0 +1,57 @@
+package redis.clients.johm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import redis.clients.johm.models.Book;
+import redis.clients.johm.models.FaultyModel;
+import redis.clients.johm.models.User;
+
+public class ModelMetadataTest extends Assert {
+    @Test
+    public void shouldComputeMetadataOnce() {
+        assertSame(ModelMetadata.of(User.class), ModelMetadata.of(User.class));
+    }
+
+    @Test
+    public void shouldDescribeModelFields() {
+        ModelMetadata metadata = ModelMetadata.of(User.class);
+        assertEquals("User", metadata.getName());
+        assertTrue(metadata.isSupportAll());
+        assertEquals("id", metadata.getIdField().getName());
+        assertEquals(4, metadata.getAttributes().size());
+        assertEquals(1, metadata.getReferences().size());
+        assertEquals(1, metadata.getArrays().size());
+        assertEquals(4, metadata.getCollections().size());
+        assertNull(metadata.getField("room"));
+
+        FieldMetadata country = metadata.getField("country");
+        assertTrue(country.isReference());
+        assertTrue(country.isIndexed());
+        assertEquals("country_id", country.getStorageKey());
+
+        // arrays and collections maintain their own element indexes
+        assertEquals(3, metadata.getIndexed().size());
+        assertTrue(metadata.getField("threeLatestPurchases").isIndexed());
+        assertFalse(metadata.getIndexed().contains(
+                metadata.getField("threeLatestPurchases")));
+    }
+
+    @Test
+    public void shouldGatherInheritedAttributes() {
+        ModelMetadata metadata = ModelMetadata.of(Book.class);
+        assertEquals(5, metadata.getAttributes().size());
+        assertNotNull(metadata.getField("price"));
+        assertEquals(Book.class, metadata.getIdField().getDeclaringClass());
+    }
+
+    @Test(expected = JOhmException.class)
+    public void shouldNotDescribeInvalidModels() {
+        ModelMetadata.of(FaultyModel.class);
+    }
+
+    @Test(expected = JOhmException.class)
+    public void shouldNotDescribeClassesWithoutModel() {
+        ModelMetadata.of(String.class);
+    }
+}
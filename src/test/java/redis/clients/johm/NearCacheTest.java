@@ -0,0 +1,46 @@
+package redis.clients.johm;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.johm.models.Currency;
+
+public class NearCacheTest extends JOhmTestBase {
+    @Test
+    public void shouldServeCachedModelsUntilInvalidated() throws InterruptedException {
+        Currency currency = new Currency();
+        currency.setName("Euro");
+        JOhm.save(currency);
+        Currency cachedCurrency = JOhm.get(Currency.class, currency.getId());
+        assertEquals("Euro", cachedCurrency.getName());
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            String key = "Currency:" + currency.getId();
+            jedis.hset(key, "name", "Dollar");
+            cachedCurrency = JOhm.get(Currency.class, currency.getId());
+            assertEquals("Euro", cachedCurrency.getName());
+            assertNotSame(cachedCurrency, JOhm.get(Currency.class, currency.getId()));
+
+            // as another JVM would after changing the model
+            jedis.publish(NearCache.CHANNEL, key);
+            for (int iter = 0; iter < 50
+                    && "Euro".equals(JOhm.<Currency> get(Currency.class,
+                            currency.getId()).getName()); iter++) {
+                Thread.sleep(20);
+            }
+            assertEquals("Dollar", JOhm.<Currency> get(Currency.class, currency.getId())
+                    .getName());
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+
+        currency.setName("Yen");
+        JOhm.save(currency);
+        assertEquals("Yen", JOhm.<Currency> get(Currency.class, currency.getId())
+                .getName());
+
+        assertTrue(JOhm.delete(Currency.class, currency.getId()));
+        assertNull(JOhm.get(Currency.class, currency.getId()));
+    }
+}
@@ -1,12 +1,16 @@
 package redis.clients.johm;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
+import redis.clients.jedis.Jedis;
 import redis.clients.johm.models.Country;
 import redis.clients.johm.models.Item;
+import redis.clients.johm.models.Reading;
 import redis.clients.johm.models.User;
 
 public class SearchTest extends JOhmTestBase {
@@ -102,6 +106,46 @@ public class SearchTest extends JOhmTestBase {
         assertEquals(user4Found.getInitial(), user2.getInitial());
     }
 
+    @Test
+    public void canLimitSearchResults() {
+        for (int n = 0; n < 5; n++) {
+            User user = new User();
+            user.setName("model" + n);
+            user.setAge(55);
+            JOhm.save(user);
+        }
+
+        List<User> users = JOhm.find(User.class, "age", 55);
+        assertEquals(5, users.size());
+        users = JOhm.find(User.class, "age", 55, 3);
+        assertEquals(3, users.size());
+        for (User user : users) {
+            assertEquals(55, user.getAge());
+        }
+        users = JOhm.find(User.class, "age", 55, 10);
+        assertEquals(5, users.size());
+    }
+
+    @Test
+    public void canScanSearchResults() {
+        for (int n = 0; n < 12; n++) {
+            User user = new User();
+            user.setName("model" + n);
+            user.setAge(n % 2 == 0 ? 44 : 45);
+            JOhm.save(user);
+        }
+
+        int found = 0;
+        Iterator<User> users = JOhm.<User> scanFind(User.class, "age", 44, 4)
+                .iterator();
+        while (users.hasNext()) {
+            assertEquals(44, users.next().getAge());
+            found++;
+        }
+        assertEquals(6, found);
+        assertFalse(JOhm.scanFind(User.class, "age", 99, 4).iterator().hasNext());
+    }
+
     @Test
     public void canSearchOnLists() {
         Item item = new Item();
@@ -168,6 +212,37 @@ public class SearchTest extends JOhmTestBase {
         assertTrue(Arrays.binarySearch(controlSet, 0, controlSet.length, users.get(1).getId()) >= 0);
     }
 
+    @Test
+    public void shouldReindexOnUpdate() {
+        Item item0 = new Item();
+        item0.setName("Foo0");
+        JOhm.save(item0);
+        Item item1 = new Item();
+        item1.setName("Foo1");
+        JOhm.save(item1);
+
+        User user = new User();
+        user.setName("foo");
+        user.setAge(3);
+        user.setThreeLatestPurchases(new Item[] { item0 });
+        JOhm.save(user);
+
+        user.setAge(4);
+        user.setThreeLatestPurchases(new Item[] { item1 });
+        JOhm.save(user);
+
+        assertEquals(0, JOhm.find(User.class, "age", 3).size());
+        assertEquals(1, JOhm.find(User.class, "age", 4).size());
+        assertEquals(1, JOhm.find(User.class, "name", "foo").size());
+        assertEquals(0, JOhm.find(User.class, "threeLatestPurchases",
+                item0.getId()).size());
+        assertEquals(1, JOhm.find(User.class, "threeLatestPurchases",
+                item1.getId()).size());
+        User savedUser = JOhm.get(User.class, user.getId());
+        assertEquals(item1.getId(), savedUser.getThreeLatestPurchases()[0].getId());
+        assertNull(savedUser.getThreeLatestPurchases()[1]);
+    }
+
     @Test
     public void canSearchOnSets() {
         Item item = new Item();
@@ -302,4 +377,176 @@ public class SearchTest extends JOhmTestBase {
 
         assertNull(JOhm.get(User.class, id));
     }
+
+    @Test
+    public void shouldFindByRange() {
+        for (int age = 10; age <= 50; age += 10) {
+            User user = new User();
+            user.setName("user" + age);
+            user.setAge(age);
+            JOhm.save(user);
+        }
+
+        List<User> users = JOhm.findRange(User.class, "age", 18, 40);
+        assertEquals(3, users.size());
+        assertEquals(20, users.get(0).getAge());
+        assertEquals(40, users.get(2).getAge());
+        users = JOhm.findRange(User.class, "age", null, 30, 1, 1);
+        assertEquals(1, users.size());
+        assertEquals(20, users.get(0).getAge());
+        assertEquals(2, JOhm.findRange(User.class, "age", 40, null).size());
+
+        User user = users.get(0);
+        user.setAge(60);
+        JOhm.save(user);
+        assertEquals(3, JOhm.findRange(User.class, "age", 40, null).size());
+        JOhm.increment(User.class, user.getId(), "age", -55L);
+        users = JOhm.findRange(User.class, "age", null, 10);
+        assertEquals(2, users.size());
+        assertEquals(5, users.get(0).getAge());
+
+        JOhm.delete(User.class, user.getId());
+        assertEquals(1, JOhm.findRange(User.class, "age", null, 10).size());
+    }
+
+    @Test
+    public void shouldQueryWithSetAlgebra() {
+        String[] names = { "a", "b", "a", "b", "c" };
+        int[] ages = { 10, 10, 20, 20, 10 };
+        for (int iter = 0; iter < names.length; iter++) {
+            User user = new User();
+            user.setName(names[iter]);
+            user.setAge(ages[iter]);
+            JOhm.save(user);
+        }
+
+        List<User> users = JOhm.<User> query(User.class).where("age", 10).and("name", "a")
+                .list();
+        assertEquals(1, users.size());
+        assertEquals("a", users.get(0).getName());
+        assertEquals(10, users.get(0).getAge());
+
+        assertEquals(4, JOhm.query(User.class).where("name", "a").or("name", "b").ids()
+                .size());
+        assertEquals(2, JOhm.query(User.class).where("age", 10).not("name", "a").ids()
+                .size());
+        // (age 20 and not b) or (name c and age 10)
+        users = JOhm.<User> query(User.class).where("age", 20).not("name", "b").or(
+                "name", "c").and("age", 10).list();
+        assertEquals(2, users.size());
+        assertEquals(0, JOhm.query(User.class).where("age", 10).and("name", "z").ids()
+                .size());
+        assertEquals(3, JOhm.query(User.class).where("age", 10).not("name", "z").ids()
+                .size());
+
+        Jedis jedis = jedisPool.getResource();
+        try {
+            assertTrue(jedis.keys("johm:query:*").isEmpty());
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    @Test
+    public void shouldOrderAndPageQueries() {
+        String[] names = { "d", "b", "e", "a", "c" };
+        for (int iter = 0; iter < names.length; iter++) {
+            User user = new User();
+            user.setName(names[iter]);
+            user.setAge(iter % 2 + 1);
+            user.setSalary(100 - 10 * iter);
+            JOhm.save(user);
+        }
+        User unset = new User();
+        unset.setName("f");
+        JOhm.save(unset);
+
+        List<User> users = JOhm.<User> query(User.class).where("age", 1).or("age", 2)
+                .orderBy("name", true).limit(1, 3).list();
+        assertEquals(3, users.size());
+        assertEquals("b", users.get(0).getName());
+        assertEquals("d", users.get(2).getName());
+
+        users = JOhm.<User> query(User.class).where("age", 1).orderBy("salary", true)
+                .list();
+        assertEquals(3, users.size());
+        assertEquals(60f, users.get(0).getSalary(), 0);
+        assertEquals(100f, users.get(2).getSalary(), 0);
+
+        // age has a sorted index
+        users = JOhm.<User> query(User.class).where("age", 2).or("name", "f").orderBy(
+                "age", false).limit(0, 2).list();
+        assertEquals(2, users.size());
+        assertEquals(2, users.get(0).getAge());
+        assertEquals(2, users.get(1).getAge());
+        users = JOhm.<User> query(User.class).where("age", 2).or("name", "f").orderBy(
+                "age", true).list();
+        assertEquals("f", users.get(0).getName());
+
+        assertEquals(2, JOhm.query(User.class).where("age", 1).limit(0, 2).ids().size());
+    }
+
+    @Test(expected = JOhmException.class)
+    public void cannotOrderBlobModelsByUnsortedAttribute() {
+        JOhm.query(Reading.class).where("name", "a").orderBy("value", true);
+    }
+
+    @Test
+    public void cannotOrderByStringAttributeWhileCompressing() {
+        Query<User> query = JOhm.<User> query(User.class).where("age", 1).orderBy("name",
+                true);
+        int threshold = JOhm.getCompressionThreshold();
+        JOhm.setCompressionThreshold(1024);
+        try {
+            query.ids();
+            fail("Compressed names would not sort as their text");
+        } catch (JOhmException e) {
+            // expected
+        } finally {
+            JOhm.setCompressionThreshold(threshold);
+        }
+        query.ids();
+        JOhm.query(User.class).where("age", 1).orderBy("age", true).ids();
+    }
+
+    @Test
+    public void shouldCountAndFindIdsWithoutLoading() {
+        for (int iter = 0; iter < 3; iter++) {
+            User user = new User();
+            user.setName("counted");
+            user.setAge(iter);
+            JOhm.save(user);
+        }
+        assertEquals(3, JOhm.count(User.class, "name", "counted"));
+        assertEquals(0, JOhm.count(User.class, "name", "nobody"));
+        Set<String> ids = JOhm.findIds(User.class, "name", "counted");
+        assertEquals(3, ids.size());
+        for (String id : ids) {
+            assertEquals("counted", JOhm.<User> get(User.class, id).getName());
+        }
+    }
+
+    @Test(expected = JOhmException.class)
+    public void cannotRunQueryWithoutCriteria() {
+        JOhm.query(User.class).ids();
+    }
+
+    @Test(expected = InvalidFieldException.class)
+    public void cannotFindRangeOnUnsortedField() {
+        JOhm.findRange(User.class, "name", 1, 2);
+    }
+
+    @Test(expected = JOhmException.class)
+    public void cannotSortNonNumericField() {
+        ModelMetadata.of(SortedByName.class);
+    }
+
+    @Model
+    static class SortedByName {
+        @Id
+        private Long id;
+        @Attribute
+        @Indexed(sorted = true)
+        private String name;
+    }
 }
\ No newline at end of file
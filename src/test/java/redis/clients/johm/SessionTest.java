@@ -0,0 +1,164 @@
+package redis.clients.johm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.commons.pool.impl.GenericObjectPool.Config;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.PipelineBlock;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.johm.models.Country;
+import redis.clients.johm.models.User;
+
+public class SessionTest extends JOhmTestBase {
+    @Test
+    public void shouldShareOneConnectionWithinSession() {
+        Config config = new Config();
+        config.maxActive = 1;
+        config.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
+        JedisPool singleConnectionPool = new JedisPool(config, "localhost");
+        JOhm.setPool(singleConnectionPool);
+        try {
+            Session session = JOhm.openSession();
+            try {
+                Country country = new Country();
+                country.setName("Somewhere");
+                JOhm.save(country);
+                User user = new User();
+                user.setName("foo");
+                user.setAge(3);
+                user.setCountry(country);
+                JOhm.save(user);
+                JOhm.save(user);
+
+                User savedUser = JOhm.get(User.class, user.getId());
+                assertEquals("Somewhere", savedUser.getCountry().getName());
+                assertEquals(1, JOhm.find(User.class, "age", 3).size());
+                assertTrue(JOhm.delete(User.class, user.getId()));
+
+                try {
+                    singleConnectionPool.getResource();
+                    fail("The session should be holding the only connection");
+                } catch (JedisConnectionException e) {
+                    // expected
+                }
+            } finally {
+                session.close();
+            }
+
+            Jedis jedis = singleConnectionPool.getResource();
+            singleConnectionPool.returnResource(jedis);
+        } finally {
+            JOhm.setPool(jedisPool);
+            singleConnectionPool.destroy();
+        }
+    }
+
+    @Test
+    public void shouldLoadEachModelOnceWithinSession() {
+        Country country = new Country();
+        country.setName("Somewhere");
+        JOhm.save(country);
+        for (int iter = 0; iter < 3; iter++) {
+            User user = new User();
+            user.setAge(3);
+            user.setCountry(country);
+            JOhm.save(user);
+        }
+
+        List<User> users = JOhm.find(User.class, "age", 3);
+        List<User> reloadedUsers = JOhm.find(User.class, "age", 3);
+        assertNotSame(users.get(0).getCountry(), reloadedUsers.get(0).getCountry());
+
+        Session session = JOhm.openSession();
+        try {
+            users = JOhm.find(User.class, "age", 3);
+            assertEquals(3, users.size());
+            Country savedCountry = JOhm.get(Country.class, country.getId());
+            assertNotSame(country, savedCountry);
+            for (User user : users) {
+                assertSame(savedCountry, user.getCountry());
+                assertSame(user, JOhm.get(User.class, user.getId()));
+            }
+
+            JOhm.delete(User.class, users.get(0).getId());
+            assertNull(JOhm.get(User.class, users.get(0).getId()));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void shouldJoinOpenSession() {
+        Session outer = JOhm.openSession();
+        Session inner = JOhm.openSession();
+        assertSame(outer, inner);
+        inner.close();
+        outer.close();
+        Session next = JOhm.openSession();
+        assertNotSame(outer, next);
+        next.close();
+    }
+
+    @Test
+    public void shouldCloseAsCloseable() throws IOException {
+        Session session = JOhm.openSession();
+        Closeable closeable = session;
+        closeable.close();
+        Session next = JOhm.openSession();
+        assertNotSame(session, next);
+        next.close();
+    }
+
+    @Test
+    public void shouldDiscardConnectionOnFailedCommand() {
+        Config config = new Config();
+        config.maxActive = 1;
+        config.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
+        JedisPool singleConnectionPool = new JedisPool(config, "localhost");
+        JOhm.setPool(singleConnectionPool);
+        try {
+            Nest<Object> nest = new Nest<Object>("plain");
+            nest.setJedisPool(singleConnectionPool);
+            nest.set("value");
+
+            Session session = JOhm.openSession();
+            try {
+                try {
+                    nest.pipelined(new PipelineBlock() {
+                        public void execute() {
+                            echo("pending");
+                            throw new IllegalStateException();
+                        }
+                    });
+                    fail("The pipeline block should have failed");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                assertEquals("value", nest.get());
+                try {
+                    nest.hgetAll();
+                    fail("A string is not a hash");
+                } catch (JedisDataException e) {
+                    // expected
+                }
+                assertEquals("value", nest.get());
+            } finally {
+                session.close();
+            }
+
+            assertEquals("value", nest.get());
+            Jedis jedis = singleConnectionPool.getResource();
+            singleConnectionPool.returnResource(jedis);
+        } finally {
+            JOhm.setPool(jedisPool);
+            singleConnectionPool.destroy();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package redis.clients.johm.models;
+
+import redis.clients.johm.Attribute;
+import redis.clients.johm.Cached;
+import redis.clients.johm.Id;
+import redis.clients.johm.Model;
+
+@Model
+@Cached(maxSize = 10, ttl = 60)
+public class Currency {
+    @Id
+    private Long id;
+    @Attribute
+    private String name;
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,67 @@
+package redis.clients.johm.models;
+
+import redis.clients.johm.Array;
+import redis.clients.johm.Attribute;
+import redis.clients.johm.Id;
+import redis.clients.johm.Indexed;
+import redis.clients.johm.Lob;
+import redis.clients.johm.Model;
+import redis.clients.johm.RedisLob;
+
+@Model
+public class Document {
+    @Id
+    private Long id;
+    @Attribute
+    private String title;
+    @Attribute
+    @Indexed
+    private double score;
+    @Attribute
+    private short revision;
+    @Array(of = String.class, length = 20000)
+    @Indexed
+    private String[] tags;
+    @Lob
+    private RedisLob body;
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    public short getRevision() {
+        return revision;
+    }
+
+    public void setRevision(short revision) {
+        this.revision = revision;
+    }
+
+    public String[] getTags() {
+        return tags;
+    }
+
+    public void setTags(String[] tags) {
+        this.tags = tags;
+    }
+
+    public RedisLob getBody() {
+        return body;
+    }
+}
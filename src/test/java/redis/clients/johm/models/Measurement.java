@@ -0,0 +1,116 @@
+package redis.clients.johm.models;
+
+import java.util.Date;
+
+import redis.clients.johm.Attribute;
+import redis.clients.johm.Encoding;
+import redis.clients.johm.Id;
+import redis.clients.johm.Indexed;
+import redis.clients.johm.Model;
+import redis.clients.johm.Reference;
+
+@Model(encoding = Encoding.BINARY)
+public class Measurement {
+    public enum Unit {
+        GRAM, KILOGRAM, TONNE
+    }
+
+    @Id
+    private Long id;
+    @Attribute
+    @Indexed
+    private int count;
+    @Attribute
+    private long total;
+    @Attribute
+    private double value;
+    @Attribute
+    private Float ratio;
+    @Attribute
+    private boolean valid;
+    @Attribute
+    private Date takenAt;
+    @Attribute
+    @Indexed
+    private Unit unit;
+    @Attribute
+    private String label;
+    @Reference
+    private Country country;
+
+    public Long getId() {
+        return id;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    public Float getRatio() {
+        return ratio;
+    }
+
+    public void setRatio(Float ratio) {
+        this.ratio = ratio;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public Date getTakenAt() {
+        return takenAt;
+    }
+
+    public void setTakenAt(Date takenAt) {
+        this.takenAt = takenAt;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    public void setUnit(Unit unit) {
+        this.unit = unit;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public Country getCountry() {
+        return country;
+    }
+
+    public void setCountry(Country country) {
+        this.country = country;
+    }
+}
@@ -0,0 +1,51 @@
+package redis.clients.johm.models;
+
+import redis.clients.johm.Attribute;
+import redis.clients.johm.Id;
+import redis.clients.johm.Indexed;
+import redis.clients.johm.Layout;
+import redis.clients.johm.Model;
+import redis.clients.johm.Reference;
+import redis.clients.johm.SupportAll;
+
+@Model(layout = Layout.BLOB)
+@SupportAll
+public class Reading {
+    @Id
+    private Long id;
+    @Attribute
+    @Indexed
+    private String name;
+    @Attribute
+    private int value;
+    @Reference
+    private Country country;
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public void setValue(int value) {
+        this.value = value;
+    }
+
+    public Country getCountry() {
+        return country;
+    }
+
+    public void setCountry(Country country) {
+        this.country = country;
+    }
+}
@@ -0,0 +1,39 @@
+package redis.clients.johm.models;
+
+import redis.clients.johm.Attribute;
+import redis.clients.johm.Id;
+import redis.clients.johm.Indexed;
+import redis.clients.johm.LazyReference;
+import redis.clients.johm.Model;
+import redis.clients.johm.Reference;
+
+@Model
+public class Traveller {
+    @Id
+    private Long id;
+    @Attribute
+    private String name;
+    @Reference
+    @Indexed
+    private LazyReference<Country> homeland;
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public LazyReference<Country> getHomeland() {
+        return homeland;
+    }
+
+    public void setHomeland(LazyReference<Country> homeland) {
+        this.homeland = homeland;
+    }
+}
@@ -27,7 +27,7 @@ public class User {
     private String name;
     private String room;
     @Attribute
-    @Indexed
+    @Indexed(sorted = true)
     private int age;
     @Attribute
     private float salary;